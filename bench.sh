@@ -0,0 +1,16 @@
+binDir="./bin/"
+benchBinDir="./bin/bench/"
+benchDir="./bench/"
+
+## Benchmarks run against the compiled server classes
+./compile.sh
+
+mkdir -p $benchBinDir
+
+javac -encoding UTF-8 -cp $binDir -d $benchBinDir $benchDir*.java
+
+## Java options (benchmark tunables go in JAVA_OPTS, e.g. JAVA_OPTS="-Dbench.seconds=5")
+## Rate limits are off, or the benches feeding commands in a loop would time the ERROR replies; JAVA_OPTS can turn them on
+javaOpt="-Dchat.rate.user=0 -Dchat.rate.room=0 $JAVA_OPTS -cp $binDir:$benchBinDir"
+
+java $javaOpt $1 $2 $3
@@ -0,0 +1,46 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Outbound batching: a burst of frames queued for one user and flushed once,
+ * the way a reactor flushes at the end of a wake-up. A write per frame
+ * (chat.batch.maxBytes=0) is compared with gathering writes. The sink is
+ * /dev/null, so every write is a real syscall that never backs up.
+ * Reported per frame, followed by the write calls each frame cost.
+ *
+ * Parameters: -Dbench.burst (frames queued per flush), -Dbench.batchBytes
+ * (gathering write cap, 0 for a write per frame), -Dbench.messageSize.
+ *
+ * Run with ./bench.sh BatchingBench
+ */
+public class BatchingBench {
+    public static void main(String[] args) throws Exception {
+        try (FileChannel sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE)) {
+            Bench.header("OutboundQueue.flush");
+            Name alice = NameIds.acquire("alice");
+            for (int size : Bench.ints("bench.messageSize", "16,256")) {
+                ByteBuffer frame = MessagingUtils.encode(MessageType.MESSAGE, alice, Bench.text(size, 0));
+
+                for (int burst : Bench.ints("bench.burst", "1,8,64")) {
+                    for (int batchBytes : Bench.ints("bench.batchBytes", "0,65536")) {
+                        OutboundQueue queue = new OutboundQueue(1024, 1 << 20, batchBytes,
+                                SlowConsumerPolicy.DROP_OLDEST);
+                        long calls = Metrics.writeCalls.sum();
+                        long frames = Metrics.framesWritten.sum();
+
+                        Bench.run("size=" + size + " burst=" + burst + " batchBytes=" + batchBytes, burst, () -> {
+                            for (int i = 0; i < burst; i++)
+                                queue.offer(frame.duplicate());
+                            return queue.flush(sink);
+                        });
+
+                        System.out.printf("%-48s %14.3f writes/frame%n", "",
+                                (Metrics.writeCalls.sum() - calls) / (double) (Metrics.framesWritten.sum() - frames));
+                    }
+                }
+            }
+        }
+    }
+}
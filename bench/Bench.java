@@ -0,0 +1,139 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal benchmark harness. Runs an operation in timed batches after a
+ * warm-up and reports throughput together with the heap bytes allocated per
+ * operation, taken from the thread allocation counter (the same figure JMH's
+ * gc profiler reports as gc.alloc.rate.norm).
+ */
+public class Bench {
+    public interface Op {
+        Object run() throws Exception;
+    }
+
+    private static final int WARMUP_SECONDS = Integer.getInteger("bench.warmup", 2);
+    private static final int SECONDS = Integer.getInteger("bench.seconds", 3);
+    private static final int BATCH = 1024;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    /* Results are stored here so the JIT can't drop the work */
+    public static volatile Object blackhole;
+
+    private Bench() {
+    }
+
+    /**
+     * Benchmarks an operation and prints one result line
+     *
+     * @param name shown in the report
+     * @param op   to measure
+     */
+    public static void run(String name, Op op) throws Exception {
+        run(name, 1, op);
+    }
+
+    /**
+     * Benchmarks an operation that does several units of work per call, and
+     * reports per unit
+     *
+     * @param name       shown in the report
+     * @param opsPerCall units of work done by each call
+     * @param op         to measure
+     */
+    public static void run(String name, int opsPerCall, Op op) throws Exception {
+        loop(op, WARMUP_SECONDS * 1_000_000_000L);
+
+        long tid = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+
+        long ops = loop(op, SECONDS * 1_000_000_000L) * opsPerCall;
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore;
+
+        System.out.printf("%-48s %14.0f ops/s %10.1f B/op %10.1f MB/s alloc%n", name, ops * 1e9 / elapsed,
+                (double) allocated / ops, allocated * 1e3 / elapsed);
+    }
+
+    private static long loop(Op op, long nanos) throws Exception {
+        long ops = 0;
+        long deadline = System.nanoTime() + nanos;
+
+        do {
+            for (int i = 0; i < BATCH; i++)
+                blackhole = op.run();
+            ops += BATCH;
+        } while (System.nanoTime() < deadline);
+
+        return ops;
+    }
+
+    /**
+     * Reads a comma separated list of integer parameters
+     *
+     * @param name of the system property
+     * @param def  used when it is unset
+     * @return the values
+     */
+    public static int[] ints(String name, String def) {
+        String[] parts = System.getProperty(name, def).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    /**
+     * Reads a comma separated list of decimal parameters
+     *
+     * @param name of the system property
+     * @param def  used when it is unset
+     * @return the values
+     */
+    public static double[] doubles(String name, String def) {
+        String[] parts = System.getProperty(name, def).split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Double.parseDouble(parts[i].trim());
+        return values;
+    }
+
+    /**
+     * Builds message text of a given length in characters, where roughly the
+     * given fraction of characters need more than one byte in UTF-8
+     *
+     * @param length   in characters
+     * @param nonAscii fraction of non-ASCII characters, 0 to 1
+     * @return the text, with no spaces at the start and no new lines
+     */
+    public static String text(int length, double nonAscii) {
+        final String ascii = "the quick brown fox jumps over the lazy dog ";
+        final String other = "éàçõüñ€ß日本語";
+        java.util.Random random = new java.util.Random(length);
+        StringBuilder sb = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            if (random.nextDouble() < nonAscii)
+                sb.append(other.charAt(random.nextInt(other.length())));
+            else
+                sb.append(ascii.charAt(i % ascii.length()));
+        }
+
+        if (length > 0 && sb.charAt(0) == ' ')
+            sb.setCharAt(0, 'x');
+        return sb.toString();
+    }
+
+    /**
+     * Prints a section header
+     *
+     * @param title of the section
+     */
+    public static void header(String title) {
+        System.out.println();
+        System.out.println("# " + title);
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * Runs every benchmark in turn. Parameters are shared, see each benchmark.
+ *
+ * Run with ./bench.sh BenchSuite
+ */
+public class BenchSuite {
+    public static void main(String[] args) throws Exception {
+        FramingBench.main(args);
+        ProtocolBench.main(args);
+        MetricsBench.main(args);
+        DispatchBench.main(args);
+        EncodingBench.main(args);
+        BatchingBench.main(args);
+        BroadcastBench.main(args);
+        WireBench.main(args);
+        TimingWheelBench.main(args);
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Room fan-out: one MESSAGE broadcast to every member of a room, each member
+ * on its own loopback connection. Reported per broadcast; multiply by the
+ * room size for deliveries.
+ *
+ * Parameters: -Dbench.roomSize, -Dbench.messageSize (characters per
+ * message), -Dbench.nonAscii (fraction of multi-byte characters).
+ *
+ * Run with ./bench.sh BroadcastBench
+ */
+public class BroadcastBench {
+    public static void main(String[] args) throws Exception {
+        Bench.header("Room.sendMessage");
+        for (int roomSize : Bench.ints("bench.roomSize", "1,100,1000")) {
+            try (Loopback loopback = new Loopback()) {
+                for (int i = 0; i < roomSize; i++) {
+                    User user = loopback.user();
+                    Protocol.processInput("/nick member" + i, user);
+                    Protocol.processInput("/join " + "bench-" + roomSize, user);
+                }
+                Room room = Room.getByName("bench-" + roomSize);
+                Name sender = NameIds.acquire("member0");
+
+                for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+                    for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                        String text = Bench.text(size, nonAscii);
+                        Bench.run("room=" + roomSize + " size=" + size + " nonAscii=" + nonAscii, () -> {
+                            room.sendMessage(sender, text);
+                            return room;
+                        });
+                    }
+                }
+            }
+        }
+    }
+}
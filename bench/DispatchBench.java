@@ -0,0 +1,62 @@
+/**
+ * Protocol.processInput end to end for one connected user: parsing, state
+ * dispatch and the replies it triggers, written to loopback connections.
+ *
+ * Parameters: -Dbench.messageSize (characters per message), -Dbench.nonAscii
+ * (fraction of multi-byte characters).
+ *
+ * Run with ./bench.sh DispatchBench
+ */
+public class DispatchBench {
+    public static void main(String[] args) throws Exception {
+        try (Loopback loopback = new Loopback()) {
+            User sender = loopback.user();
+            User peer = loopback.user();
+            User resident = loopback.user();
+
+            Protocol.processInput("/nick sender", sender);
+            Protocol.processInput("/nick peer", peer);
+            Protocol.processInput("/nick resident", resident);
+            Protocol.processInput("/join lobby", resident);
+            Protocol.processInput("/join lobby", sender);
+
+            Bench.header("Protocol.processInput, INSIDE a room of 2");
+            for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+                for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                    String text = Bench.text(size, nonAscii);
+                    String plain = text;
+                    String escaped = "//" + text;
+                    String priv = "/priv peer " + text;
+                    String suffix = " size=" + size + " nonAscii=" + nonAscii;
+
+                    Bench.run("plain text" + suffix, () -> {
+                        Protocol.processInput(plain, sender);
+                        return sender;
+                    });
+                    Bench.run("// escaped text" + suffix, () -> {
+                        Protocol.processInput(escaped, sender);
+                        return sender;
+                    });
+                    Bench.run("/priv" + suffix, () -> {
+                        Protocol.processInput(priv, sender);
+                        return sender;
+                    });
+                }
+            }
+
+            Bench.run("/join (leave and rejoin)", () -> {
+                Protocol.processInput("/join lobby", sender);
+                return sender;
+            });
+            Bench.run("/nick", 2, () -> {
+                Protocol.processInput("/nick sender2", sender);
+                Protocol.processInput("/nick sender", sender);
+                return sender;
+            });
+            Bench.run("unknown command", () -> {
+                Protocol.processInput("/dance", sender);
+                return sender;
+            });
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Outbound encoding: building and UTF-8 encoding a MESSAGE frame, and
+ * sending it to one user over a loopback connection, which adds the outbound
+ * queue and the write syscall.
+ *
+ * Parameters: -Dbench.messageSize (characters per message), -Dbench.nonAscii
+ * (fraction of multi-byte characters).
+ *
+ * Run with ./bench.sh EncodingBench
+ */
+public class EncodingBench {
+    public static void main(String[] args) throws Exception {
+        try (Loopback loopback = new Loopback()) {
+            User user = loopback.user();
+            Name alice = NameIds.acquire("alice");
+
+            Bench.header("MessagingUtils.encode");
+            for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+                for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                    String text = Bench.text(size, nonAscii);
+                    Bench.run("size=" + size + " nonAscii=" + nonAscii,
+                            () -> MessagingUtils.encode(MessageType.MESSAGE, alice, text));
+                }
+            }
+
+            Bench.header("MessagingUtils.sendMessage over loopback");
+            for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+                for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                    String text = Bench.text(size, nonAscii);
+                    Bench.run("size=" + size + " nonAscii=" + nonAscii, () -> {
+                        MessagingUtils.sendMessage(user, MessageType.MESSAGE, alice, text);
+                        return user;
+                    });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetDecoder;
+
+/**
+ * Inbound framing: bytes arriving in socket-read sized chunks are split into
+ * lines and decoded by LineFramer, with a pooled buffer carrying partial
+ * lines across reads. Reported per line.
+ *
+ * Parameters: -Dbench.messageSize (characters per line), -Dbench.nonAscii
+ * (fraction of multi-byte characters), -Dbench.readSize (bytes per read).
+ *
+ * Run with ./bench.sh FramingBench
+ */
+public class FramingBench {
+    private static final int LINES = 64;
+
+    public static void main(String[] args) throws Exception {
+        int readSize = Integer.getInteger("bench.readSize", 4096);
+
+        Bench.header("LineFramer, " + readSize + " byte reads");
+        for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+            for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                byte[] stream = stream(size, nonAscii);
+                BufferPool pool = new BufferPool(4, Config.POOL_BUFFER_SIZE);
+                ByteBuffer scratch = ByteBuffer.allocateDirect(Config.POOL_BUFFER_SIZE);
+                CharsetDecoder decoder = ChatServer.charset.newDecoder();
+                LineFramer framer = new LineFramer();
+
+                Bench.run("size=" + size + " nonAscii=" + nonAscii, LINES, () -> {
+                    int lines = 0;
+                    for (int off = 0; off < stream.length; off += readSize) {
+                        ByteBuffer buffer = framer.buffer(scratch);
+                        buffer.put(stream, off, Math.min(readSize, stream.length - off));
+
+                        while (framer.nextLine(decoder) != null)
+                            lines++;
+
+                        framer.compact(pool);
+                    }
+                    return lines;
+                });
+            }
+        }
+    }
+
+    /* LINES lines of text, as a client would send them */
+    private static byte[] stream(int size, double nonAscii) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++)
+            sb.append(Bench.text(size, nonAscii)).append('\n');
+        return sb.toString().getBytes(ChatServer.charset);
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Connected loopback socket pairs for benchmarks. The server side is handed
+ * out as non-blocking channels to build users on; the client side is read and
+ * discarded by a background thread so the server side never backs up.
+ */
+public class Loopback implements AutoCloseable {
+    private final ServerSocketChannel listener;
+    private final Selector drainSelector;
+    private final List<SocketChannel> clients = new ArrayList<>();
+    private final List<User> users = new ArrayList<>();
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    public Loopback() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        drainSelector = Selector.open();
+
+        drainer = new Thread(this::drain, "loopback-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Opens a new pair
+     *
+     * @return the non-blocking server side
+     */
+    public SocketChannel open() throws IOException {
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel server = listener.accept();
+
+        server.configureBlocking(false);
+        client.configureBlocking(false);
+
+        synchronized (clients) {
+            clients.add(client);
+        }
+        drainSelector.wakeup();
+        return server;
+    }
+
+    /**
+     * Creates a user on a fresh pair, with no reactor so its writes are flushed
+     * inline by the benchmark thread
+     *
+     * @return the user
+     */
+    public User user() throws IOException {
+        User user = User.create(open(), null, null);
+        users.add(user);
+        return user;
+    }
+
+    private void drain() {
+        ByteBuffer sink = ByteBuffer.allocateDirect(1 << 16);
+
+        while (running) {
+            try {
+                synchronized (clients) {
+                    for (SocketChannel client : clients)
+                        client.register(drainSelector, SelectionKey.OP_READ);
+                    clients.clear();
+                }
+
+                drainSelector.select(100);
+
+                Iterator<SelectionKey> it = drainSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    sink.clear();
+                    if (((SocketChannel) key.channel()).read(sink) < 0)
+                        key.cancel();
+                }
+            } catch (IOException ie) {
+                if (running)
+                    System.err.println("loopback drainer: " + ie);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (User user : users)
+            user.delete();
+
+        running = false;
+        drainSelector.wakeup();
+        try {
+            drainer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : drainSelector.keys())
+            key.channel().close();
+        drainSelector.close();
+        listener.close();
+    }
+}
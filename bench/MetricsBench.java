@@ -0,0 +1,41 @@
+/**
+ * Cost of the instrumentation on the hot path: the counter bump done per
+ * line and per write, and the histogram record done per select wake-up and
+ * per broadcast. Run alongside DispatchBench to put the numbers in context.
+ *
+ * Run with ./bench.sh MetricsBench
+ */
+public class MetricsBench {
+    public static void main(String[] args) throws Exception {
+        Histogram histogram = new Histogram();
+        long[] values = new long[1024];
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < values.length; i++)
+            values[i] = (long) Math.abs(random.nextGaussian() * 50_000) + 1_000;
+
+        Bench.header("Metrics");
+        Bench.run("LongAdder.increment (linesFramed)", () -> {
+            Metrics.linesFramed.increment();
+            return null;
+        });
+        Bench.run("LongAdder.add (bytesRead)", () -> {
+            Metrics.bytesRead.add(64);
+            return null;
+        });
+        Bench.run("Metrics.command", () -> {
+            Metrics.command(CommandParser.Command.MESSAGE);
+            return null;
+        });
+        int[] next = { 0 };
+        Bench.run("Histogram.record", () -> {
+            histogram.record(values[next[0]++ & 1023]);
+            return null;
+        });
+        Bench.run("System.nanoTime pair + Histogram.record", () -> {
+            long start = System.nanoTime();
+            histogram.record(System.nanoTime() - start);
+            return null;
+        });
+        Bench.run("Metrics.scrape", () -> Metrics.instance.scrape());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Command parsing: the allocation-free CommandParser against the regex and
+ * String.split code it replaced, for each kind of line a client sends.
+ *
+ * Run with ./bench.sh ProtocolBench
+ */
+public class ProtocolBench {
+    private static final String[][] LINES = {
+            { "plain text", "hello everyone, how is it going today?" },
+            { "// escaped text", "//etc/passwd is not a command, just text" },
+            { "/priv", "/priv alice are you around for a quick call?" },
+            { "/join", "/join general" },
+    };
+
+    public static void main(String[] args) throws Exception {
+        CommandParser parser = new CommandParser();
+
+        Bench.header("CommandParser");
+        for (String[] line : LINES) {
+            String input = line[1];
+            Bench.run(line[0], () -> parser.parse(input));
+        }
+
+        Bench.header("CommandParser with argument extraction");
+        for (String[] line : LINES) {
+            String input = line[1];
+            Bench.run(line[0], () -> extract(parser, input));
+        }
+
+        Bench.header("regex + split (previous Protocol)");
+        for (String[] line : LINES) {
+            String input = line[1];
+            Bench.run(line[0], () -> legacy(input));
+        }
+    }
+
+    /* What Protocol pulls out of each line once it is parsed */
+    private static Object extract(CommandParser parser, String input) {
+        switch (parser.parse(input)) {
+            case MESSAGE:
+                return parser.text();
+            case PRIV:
+                return parser.hasArgumentAndText() ? parser.argument() + parser.rest() : null;
+            case JOIN:
+            case NICK:
+                return parser.hasSingleArgument() ? parser.argument() : null;
+            default:
+                return null;
+        }
+    }
+
+    /* The parsing Protocol.insideState used to do */
+    private static Object legacy(String input) {
+        input = input.replace("\n", "").replace("\r", "");
+
+        if (input.matches("^[^/](.|\\s)*"))
+            return input;
+        else if (input.matches("^(//)(.|\\s)*"))
+            return input.replaceFirst("/", "");
+
+        String[] tokens = input.split(" ");
+        if (tokens[0].equals("/priv"))
+            return input.split(" ", 3);
+        return tokens;
+    }
+}
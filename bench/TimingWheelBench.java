@@ -0,0 +1,39 @@
+/**
+ * Cost of the connection timeouts per connection: rescheduling a timer, and
+ * advancing the wheel one tick with many timers in it, most of them not due.
+ * Neither should grow with the number of connections.
+ *
+ * Parameters: -Dbench.connections (timers in the wheel).
+ *
+ * Run with ./bench.sh TimingWheelBench
+ */
+public class TimingWheelBench {
+    public static void main(String[] args) throws Exception {
+        Bench.header("TimingWheel");
+        for (int connections : Bench.ints("bench.connections", "1000,100000")) {
+            long tick = 1_000_000;
+            TimingWheel wheel = new TimingWheel(tick, 4096, 0);
+            TimingWheel.Timer[] timers = new TimingWheel.Timer[connections];
+            java.util.Random random = new java.util.Random(1);
+            for (int i = 0; i < connections; i++) {
+                timers[i] = new TimingWheel.Timer(null);
+                wheel.schedule(timers[i], random.nextInt(30_000) * tick);
+            }
+
+            int[] next = { 0 };
+            Bench.run("schedule connections=" + connections, () -> {
+                int i = next[0]++ % connections;
+                wheel.schedule(timers[i], (1 + i % 30_000) * tick);
+                return wheel;
+            });
+
+            /* Every tick a timer fires and is set again a turn and a half away, as when a user stays active */
+            long[] now = { 0 };
+            Bench.run("advance one tick connections=" + connections, () -> {
+                now[0] += tick;
+                wheel.advance(now[0], timer -> wheel.schedule(timer, now[0] + 6_000 * tick));
+                return wheel;
+            });
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Text protocol against binary protocol, plain and compressed, for one room
+ * MESSAGE: the bytes each delivery puts on the wire, then the server time to
+ * handle the sender's frame and fan it out to a room of that protocol's
+ * members.
+ *
+ * Parameters: -Dbench.roomSize, -Dbench.messageSize (characters per
+ * message), -Dbench.nonAscii (fraction of multi-byte characters).
+ *
+ * Run with ./bench.sh WireBench
+ */
+public class WireBench {
+    public static void main(String[] args) throws Exception {
+        Name member0 = NameIds.acquire("member0");
+        for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+            String text = Bench.text(size, 0);
+            int line = MessagingUtils.encode(MessageType.MESSAGE, member0, text).remaining();
+            ByteBuffer frame = BinaryCodec.encode(MessageType.MESSAGE, member0, text);
+            System.out.printf("size=%-6d text %6d B/delivery, binary %6d B/delivery, compressed %6d B/delivery%n",
+                    size, line, frame.remaining(), FrameCompressor.compress(frame).remaining());
+        }
+
+        Bench.header("Protocol MESSAGE, per frame handled");
+        for (int roomSize : Bench.ints("bench.roomSize", "1,100")) {
+            for (String mode : new String[] { "text", "binary", "compressed" }) {
+                boolean binary = !mode.equals("text");
+                try (Loopback loopback = new Loopback()) {
+                    String room = "wire-" + roomSize + "-" + mode;
+                    User sender = null;
+                    for (int i = 0; i < roomSize; i++) {
+                        User user = loopback.user();
+                        if (binary)
+                            user.setBinary();
+                        if (mode.equals("compressed"))
+                            user.setCompressed();
+                        Protocol.processInput("/nick " + room + "-" + i, user);
+                        Protocol.processInput("/join " + room, user);
+                        if (sender == null)
+                            sender = user;
+                    }
+
+                    User from = sender;
+                    for (int size : Bench.ints("bench.messageSize", "16,256,4096")) {
+                        for (double nonAscii : Bench.doubles("bench.nonAscii", "0,0.5")) {
+                            String text = Bench.text(size, nonAscii);
+                            String name = mode + " room=" + roomSize + " size=" + size
+                                    + " nonAscii=" + nonAscii;
+
+                            if (binary) {
+                                ByteBuffer input = messageFrame(text);
+                                Bench.run(name, () -> {
+                                    Protocol.processFrame(input.duplicate(), from);
+                                    return from;
+                                });
+                            } else {
+                                Bench.run(name, () -> {
+                                    Protocol.processInput(text, from);
+                                    return from;
+                                });
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* What a binary client sends for the text, minus the length prefix */
+    private static ByteBuffer messageFrame(String text) {
+        byte[] bytes = text.getBytes(ChatServer.charset);
+        ByteBuffer frame = ByteBuffer.allocate(1 + bytes.length);
+        frame.put((byte) CommandParser.Command.MESSAGE.ordinal()).put(bytes).flip();
+        return frame;
+    }
+}
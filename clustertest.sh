@@ -0,0 +1,41 @@
+## Starts a cluster on loopback and runs the load generator twice with the same load: every connection on one
+## node, then spread over all of them so most deliveries take a hop, and prints the hop latency of each node
+## (load and server options go in JAVA_OPTS, e.g. JAVA_OPTS="-Dload.connections=3000 -Dload.rate=5000")
+
+port=${PORT:-8200}
+nodes=${NODES:-3}
+
+./compile.sh || exit 1
+
+## Rate limits are off, as in bench.sh, or a crowded room would measure ERROR replies; JAVA_OPTS can turn them on
+serverOpt="-Dchat.rate.user=0 -Dchat.rate.room=0 $JAVA_OPTS"
+
+members=""
+ports=""
+for i in $(seq 0 $((nodes - 1))); do
+	members="$members,127.0.0.1:$((port + 100 + i))"
+	ports="$ports $((port + i))"
+done
+members=${members#,}
+
+servers=""
+for i in $(seq 0 $((nodes - 1))); do
+	java $serverOpt -Dchat.cluster.nodes=$members -Dchat.cluster.node=$i -Dchat.admin.port=$((port + 200 + i)) \
+		-cp ./bin/ ChatServer $((port + i)) > /dev/null 2>&1 &
+	servers="$servers $!"
+done
+sleep 3
+
+echo "== one node"
+java $JAVA_OPTS -cp ./bin/ LoadGenerator 127.0.0.1 $port | grep -v '^warmup\|^run'
+
+echo "== $nodes nodes"
+java $JAVA_OPTS -cp ./bin/ LoadGenerator 127.0.0.1 $ports | grep -v '^warmup\|^run'
+
+for i in $(seq 0 $((nodes - 1))); do
+	echo "== node $i hop"
+	curl -s http://127.0.0.1:$((port + 200 + i))/metrics | grep '^chat_cluster'
+done
+
+kill $servers
+wait $servers 2> /dev/null
@@ -4,6 +4,6 @@ srcDir="./src/"
 mkdir -p $binDir $srcDir
 
 ## Javac options
-javacOpt="-d $binDir"
+javacOpt="-encoding UTF-8 -d $binDir"
 
 javac $javacOpt $srcDir*
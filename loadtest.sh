@@ -0,0 +1,22 @@
+## Runs the load generator over loopback against each engine in turn, same load for both
+## (load and server options go in JAVA_OPTS, e.g. JAVA_OPTS="-Dload.connections=50000 -Dload.rate=20000")
+
+port=${PORT:-8123}
+engines=${ENGINES:-"REACTOR VIRTUAL"}
+
+./compile.sh || exit 1
+
+## Rate limits are off, as in bench.sh, or a crowded room would measure ERROR replies; JAVA_OPTS can turn them on
+serverOpt="-Dchat.rate.user=0 -Dchat.rate.room=0 $JAVA_OPTS"
+
+for engine in $engines; do
+	echo "== $engine"
+	java $serverOpt -Dchat.engine=$engine -cp ./bin/ ChatServer $port > /dev/null 2>&1 &
+	server=$!
+	sleep 1
+
+	java $JAVA_OPTS -cp ./bin/ LoadGenerator 127.0.0.1 $port | grep -v '^warmup\|^run'
+
+	kill $server
+	wait $server 2> /dev/null
+done
@@ -1,7 +1,7 @@
 binDir="./bin/"
 srcDir="./src/"
 
-## Java options
-javaOpt="-cp $binDir"
+## Java options (server tunables go in JAVA_OPTS, e.g. JAVA_OPTS="-Dchat.reactors=8")
+javaOpt="$JAVA_OPTS -cp $binDir"
 
 java $javaOpt $1 $2 $3
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves the metrics as plain text on a loopback-only admin port. Any request
+ * gets the full scrape, so both curl and a Prometheus scraper work. Runs on
+ * its own daemon thread, away from the reactors.
+ */
+public class AdminServer implements Runnable {
+    private final ServerSocket socket;
+
+    private AdminServer(int port) throws IOException {
+        socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Starts the admin server if a port is configured
+     *
+     * @param port to listen on, negative to disable
+     */
+    public static void start(int port) {
+        if (port < 0)
+            return;
+
+        try {
+            AdminServer admin = new AdminServer(port);
+            Thread thread = new Thread(admin, "admin");
+            thread.setDaemon(true);
+            thread.start();
+            System.out.println("Admin metrics on " + admin.socket.getLocalSocketAddress());
+        } catch (IOException ie) {
+            System.err.println("Error opening admin port " + port + ": " + ie);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket s = socket.accept()) {
+                s.setSoTimeout(1000);
+
+                /* Read the request line, whatever it asks for */
+                byte[] request = new byte[1024];
+                s.getInputStream().read(request);
+
+                byte[] body = Metrics.instance.scrape().getBytes(ChatServer.charset);
+                OutputStream out = s.getOutputStream();
+                out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length
+                        + "\r\n\r\n").getBytes(ChatServer.charset));
+                out.write(body);
+            } catch (IOException ie) {
+                System.err.println("Admin request failed: " + ie);
+            }
+        }
+    }
+}
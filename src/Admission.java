@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Admission control on the accept path. Past chat.maxConnections open
+ * connections, or faster than chat.accept.rate new ones a second, a
+ * connection is answered ERROR and closed by the acceptor itself, before a
+ * user or a reactor task exists for it. Both checks are off by default.
+ */
+public class Admission {
+    /* New connections a second, null when not limited */
+    private static final TokenBucket rate = Config.ACCEPT_RATE > 0
+            ? new TokenBucket(Config.ACCEPT_RATE, Config.ACCEPT_BURST)
+            : null;
+
+    /* How long the acceptor waits after running out of file descriptors, for connections to close */
+    private static final long DESCRIPTOR_BACKOFF_NANOS = 100_000_000L;
+
+    private Admission() {
+    }
+
+    /**
+     * Logs a failed accept and, if the process ran out of file descriptors,
+     * waits a little before the next one instead of spinning on the same
+     * error. The acceptor carries on either way.
+     *
+     * @param ie what accept() threw
+     */
+    public static void acceptFailed(IOException ie) {
+        Log.event(LogEvent.ERROR, "accept", ie);
+
+        /* EMFILE or ENFILE: the pending connection stays in the backlog until a descriptor frees up */
+        String message = ie.getMessage();
+        if (message != null && message.contains("open files"))
+            LockSupport.parkNanos(DESCRIPTOR_BACKOFF_NANOS);
+    }
+
+    /**
+     * Lets a freshly accepted connection in, or turns it away
+     *
+     * @param sc accepted, still in blocking mode
+     * @return false if it was rejected and closed
+     */
+    public static boolean admit(SocketChannel sc) {
+        /* Counted on accept and on close, so connections still on their way to a reactor count too */
+        boolean full = Config.MAX_CONNECTIONS > 0
+                && Metrics.connectionsAccepted.sum() - Metrics.connectionsClosed.sum() >= Config.MAX_CONNECTIONS;
+
+        if (!full && (rate == null || rate.tryAcquire(System.nanoTime()))) {
+            Metrics.connectionsAccepted.increment();
+            return true;
+        }
+
+        Metrics.connectionsRejected.increment();
+        Log.event(LogEvent.REJECT, Log.peer(sc), full ? "connection limit" : "accept rate");
+        try {
+            MessagingUtils.sendError(sc);
+        } catch (IOException ie) {
+            /* Closing anyway */
+        }
+
+        try {
+            sc.close();
+        } catch (IOException ie) {
+            Log.event(LogEvent.ERROR, Log.peer(sc), ie);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes frames of the binary protocol. A client picks it by sending
+ * MAGIC as its very first byte, or MAGIC_COMPRESSED to also have large
+ * frames deflated (see FrameCompressor); anyone else gets the text protocol.
+ *
+ * Every frame, both ways, is an unsigned short length followed by that
+ * many bytes: a type byte and its body, integers big endian. Server frames
+ * are typed by MessageType ordinal and name users by NameIds id:
+ *
+ * OK, ERROR, BYE: nothing; JOINED, NAME: id, UTF-8 name; LEFT: id;
+ * NEWNICK: old id, new id, new UTF-8 name; MESSAGE, PRIVATE: sender id,
+ * UTF-8 text; HISTORY: whole frames back to back.
+ *
+ * Client frames are described in BinaryParser, plus WHOIS with an id, which
+ * is answered with NAME, or ERROR for an unknown id.
+ */
+public class BinaryCodec {
+    public static final byte MAGIC = 0;
+    public static final byte MAGIC_COMPRESSED = 1;
+    public static final byte WHOIS = 0x7F;
+
+    public static final int MAX_FRAME = 0xFFFF;
+
+    /* Set once a client negotiates binary; from then on room histories keep binary frames too */
+    private static volatile boolean inUse = false;
+
+    private BinaryCodec() {
+    }
+
+    public static void negotiated() {
+        if (!inUse)
+            inUse = true;
+    }
+
+    public static boolean inUse() {
+        return inUse;
+    }
+
+    /**
+     * Builds the binary counterpart of {@link MessagingUtils#encode}
+     *
+     * @param type  of the message
+     * @param names its arguments: the name for JOINED, NAME and LEFT, the old
+     *              and the new for NEWNICK, none otherwise
+     * @return a read-only buffer holding the frame
+     */
+    public static ByteBuffer encode(MessageType type, Name... names) {
+        ByteBuffer frame;
+
+        switch (type) {
+            case JOINED:
+            case NAME:
+                frame = frame(type, 4 + names[0].utf8().length).putInt(names[0].getId()).put(names[0].utf8());
+                break;
+            case LEFT:
+                frame = frame(type, 4).putInt(names[0].getId());
+                break;
+            case NEWNICK:
+                frame = frame(type, 8 + names[1].utf8().length).putInt(names[0].getId()).putInt(names[1].getId())
+                        .put(names[1].utf8());
+                break;
+            default:
+                frame = frame(type, 0);
+        }
+
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds the binary counterpart of {@link MessagingUtils#encode} for a
+     * message
+     *
+     * @param type   MESSAGE or PRIVATE
+     * @param sender nickname of the sender
+     * @param text   the message
+     * @return a read-only buffer holding the frame
+     */
+    public static ByteBuffer encode(MessageType type, Name sender, String text) {
+        return message(type, sender, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Builds a MESSAGE or PRIVATE frame around text that is already UTF-8
+     *
+     * @param type    MESSAGE or PRIVATE
+     * @param sender  nickname of the sender
+     * @param payload the text, left untouched
+     * @return a read-only buffer holding the frame
+     */
+    public static ByteBuffer message(MessageType type, Name sender, ByteBuffer payload) {
+        return frame(type, 4 + payload.remaining()).putInt(sender.getId()).put(payload.duplicate()).flip()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds the text protocol line for the same message straight from the
+     * UTF-8 bytes. A new line in them would end the line early, so it is sent
+     * as a space.
+     *
+     * @param type    MESSAGE or PRIVATE
+     * @param sender  nickname of the sender
+     * @param payload the text, left untouched
+     * @return a read-only buffer holding the line
+     */
+    public static ByteBuffer textMessage(MessageType type, Name sender, ByteBuffer payload) {
+        byte[] name = sender.utf8();
+        ByteBuffer line = MessagingUtils.line(type, name.length + 1 + payload.remaining()).put(name).put((byte) ' ');
+
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            byte b = payload.get(i);
+            line.put(b == '\n' ? (byte) ' ' : b);
+        }
+
+        return line.put((byte) '\n').flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds the binary frame for a message kept only as its text line, the
+     * other way round from textMessage
+     *
+     * @param type   MESSAGE or PRIVATE
+     * @param sender nickname of the sender
+     * @param line   the text protocol line, left untouched
+     * @return a read-only buffer holding the frame
+     */
+    public static ByteBuffer fromText(MessageType type, Name sender, ByteBuffer line) {
+        ByteBuffer payload = line.duplicate();
+
+        /* Past the keyword, the sender and a space each, and short of the new line */
+        int start = payload.position() + MessagingUtils.keyword(type).length + 1 + sender.utf8().length + 1;
+        payload.position(start).limit(payload.limit() - 1);
+        return message(type, sender, payload);
+    }
+
+    private static ByteBuffer frame(MessageType type, int body) {
+        int length = 1 + body;
+        if (length > MAX_FRAME)
+            throw new IllegalArgumentException("Binary frame of " + length + " bytes");
+
+        return ByteBuffer.allocate(2 + length).putShort((short) length).put((byte) type.ordinal());
+    }
+}
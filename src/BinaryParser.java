@@ -0,0 +1,119 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses one binary client frame, already stripped of its length: a type
+ * byte holding the CommandParser.Command ordinal, then its body. NICK and
+ * JOIN carry a UTF-8 name; PRIV a short-prefixed UTF-8 nickname followed by
+ * the message bytes; MESSAGE only the message bytes; LEAVE and BYE nothing.
+ * Message bytes are kept as a view of the frame, never decoded unless asked.
+ *
+ * An instance is reused frame after frame, so it must not be shared between
+ * threads.
+ */
+public class BinaryParser implements Request {
+    private static final CommandParser.Command[] COMMANDS = CommandParser.Command.values();
+
+    private CommandParser.Command command;
+    private String argument;
+    private ByteBuffer payload;
+
+    /**
+     * Parses a frame
+     *
+     * @param frame type byte and body; read through
+     * @return the command found
+     */
+    public CommandParser.Command parse(ByteBuffer frame) {
+        argument = null;
+        payload = null;
+        command = CommandParser.Command.UNKNOWN;
+
+        if (!frame.hasRemaining())
+            return command;
+
+        int type = frame.get() & 0xFF;
+        if (type >= COMMANDS.length)
+            return command;
+
+        command = COMMANDS[type];
+        switch (command) {
+            case NICK:
+            case JOIN:
+                argument = utf8(frame, frame.remaining());
+                break;
+            case PRIV:
+                if (frame.remaining() < 2)
+                    break;
+                int length = frame.getShort() & 0xFFFF;
+                if (length > frame.remaining())
+                    break;
+                argument = utf8(frame, length);
+                payload = frame.slice();
+                break;
+            case MESSAGE:
+                payload = frame.slice();
+                break;
+            default:
+                break;
+        }
+
+        return command;
+    }
+
+    private static String utf8(ByteBuffer frame, int length) {
+        ByteBuffer bytes = frame.slice();
+        bytes.limit(length);
+        frame.position(frame.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /* Names end up in text lines too, so they follow the same rules */
+    private boolean validArgument() {
+        if (argument == null || argument.isEmpty())
+            return false;
+
+        for (int i = 0; i < argument.length(); i++) {
+            char c = argument.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r')
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public CommandParser.Command getCommand() {
+        return command;
+    }
+
+    @Override
+    public boolean hasSingleArgument() {
+        return command != CommandParser.Command.PRIV && validArgument();
+    }
+
+    @Override
+    public boolean hasArgumentAndText() {
+        return payload != null && validArgument();
+    }
+
+    @Override
+    public String argument() {
+        return argument;
+    }
+
+    @Override
+    public String rest() {
+        return text();
+    }
+
+    @Override
+    public String text() {
+        return payload == null ? "" : StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    @Override
+    public ByteBuffer payload() {
+        return payload;
+    }
+}
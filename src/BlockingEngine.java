@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-per-connection engine, the blocking alternative to the reactors.
+ * Each connection gets a reader that blocks on the socket and runs the same
+ * protocol, and a writer that sleeps until frames are queued for it, so a
+ * broadcast never blocks on a slow member.
+ *
+ * Timeouts are kept in one timing wheel for all connections, advanced by a
+ * reaper thread that closes the channels of expired connections.
+ *
+ * On a runtime with virtual threads (Java 21+) both threads are virtual. On
+ * older runtimes they fall back to platform threads with small stacks, which
+ * only scales to a few thousand connections.
+ */
+public class BlockingEngine implements Runnable {
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private final ServerSocketChannel ssc;
+    private final ThreadFactory threads;
+    private final boolean virtual;
+
+    /* Timeouts of every connection; guarded by itself */
+    private final TimingWheel wheel = ConnectionTimeouts.newWheel();
+
+    public BlockingEngine(int port) throws IOException {
+        ThreadFactory factory = virtualThreadFactory();
+        this.virtual = factory != null;
+        this.threads = virtual ? factory
+                : r -> new Thread(null, r, "connection", PLATFORM_STACK_SIZE);
+
+        ssc = ServerSocketChannel.open();
+        if (Handoff.isEnabled())
+            ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        ssc.bind(new InetSocketAddress(port), Config.BACKLOG);
+        System.out.println("Listening on port " + port + " with " + (virtual ? "virtual" : "platform")
+                + " thread per connection");
+
+        if (ConnectionTimeouts.isEnabled()) {
+            Thread reaper = new Thread(this::reap, "reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+    }
+
+    /*
+     * Thread.ofVirtual().name("connection-", 0).factory(), looked up
+     * reflectively so the tree still builds and runs on Java 17
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            Object named = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "connection-", 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(named);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /* Advances the wheel every tick, and checks the connections whose timers fired outside the lock */
+    private void reap() {
+        List<TimingWheel.Timer> fired = new ArrayList<>();
+
+        while (true) {
+            try {
+                Thread.sleep(ConnectionTimeouts.TICK_NANOS / 1_000_000);
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            synchronized (wheel) {
+                wheel.advance(now, fired::add);
+            }
+
+            for (TimingWheel.Timer timer : fired) {
+                User user = (User) timer.attachment();
+                if (!user.getChannel().isOpen())
+                    continue;
+
+                ConnectionTimeouts.Reason reason = ConnectionTimeouts.expired(user, now);
+                if (reason == null) {
+                    schedule(user, now);
+                } else {
+                    Metrics.timeout(reason);
+                    Log.event(LogEvent.TIMEOUT, Log.peer(user.getChannel()), reason);
+                    user.getEventLoop().requestDisconnect(user);
+                }
+            }
+            fired.clear();
+        }
+    }
+
+    /* A connection with no deadline left, such as one past the handshake when only that timeout is on, needs no timer */
+    private void schedule(User user, long now) {
+        long deadline = ConnectionTimeouts.deadline(user, now);
+        if (deadline == Long.MAX_VALUE)
+            return;
+
+        synchronized (wheel) {
+            wheel.schedule(user.getTimer(), deadline);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (ssc.isOpen()) {
+            try {
+                SocketChannel sc = ssc.accept();
+                if (!Admission.admit(sc))
+                    continue;
+                Log.event(LogEvent.CONNECT, Log.peer(sc));
+                new Connection(sc).start();
+            } catch (AsynchronousCloseException ace) {
+                /* Stopped accepting */
+            } catch (IOException ie) {
+                Admission.acceptFailed(ie);
+            }
+        }
+    }
+
+    /* Closes the listener; connections still in its backlog are reset and retry */
+    public void stopAccepting() {
+        try {
+            ssc.close();
+        } catch (IOException ie) {
+            System.err.println("Error closing listener: " + ie);
+        }
+    }
+
+    /**
+     * One blocking connection, and the owner of its user
+     */
+    private class Connection implements EventLoop {
+        private final SocketChannel channel;
+        private final CharsetDecoder decoder = ChatServer.charset.newDecoder();
+
+        /* Empty: partial lines are rare enough to allocate their buffer when they happen */
+        private final BufferPool pool = new BufferPool(0, Config.POOL_BUFFER_SIZE);
+
+        /* Keeps frames in order when the reader writes its own replies inline */
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /* Frames on their way out, guarded by writeLock */
+        private final ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH_FRAMES];
+
+        private final Thread reader;
+        private final Thread writer;
+        private final User user;
+
+        /* Work for the reader, run after each read and while it is paused */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.reader = threads.newThread(this::read);
+            this.writer = threads.newThread(this::write);
+            this.user = User.create(channel, null, this);
+        }
+
+        void start() {
+            if (ConnectionTimeouts.isEnabled())
+                schedule(user, System.nanoTime());
+
+            /* The writer must be parked before anything can unpark it */
+            writer.start();
+            reader.start();
+        }
+
+        @Override
+        public void requestFlush(User user) {
+            if (Thread.currentThread() == reader)
+                drain();
+            else
+                LockSupport.unpark(writer);
+        }
+
+        /* Queues are safe to offer to from any thread, and the target's writer is woken by its own loop */
+        @Override
+        public void deliver(User target, ByteBuffer frame) {
+            target.send(frame);
+        }
+
+        @Override
+        public void requestDisconnect(User user) {
+            /* The reader wakes up from its read and tears the user down */
+            try {
+                channel.close();
+            } catch (IOException ie) {
+                Log.event(LogEvent.ERROR, Log.peer(channel), ie);
+            }
+        }
+
+        /* Only ever called from the reader, which sleeps it off after the lines at hand */
+        @Override
+        public void pauseReading(User user, long until) {
+            user.setPausedUntil(until);
+        }
+
+        @Override
+        public void closed(User user) {
+            synchronized (wheel) {
+                wheel.cancel(user.getTimer());
+            }
+        }
+
+        /* The reader sleeps until the pause is over; ending it now wakes it to carry on */
+        @Override
+        public void resumeReading(User user) {
+            user.setPausedUntil(System.nanoTime());
+            LockSupport.unpark(reader);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            LockSupport.unpark(reader);
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        @Override
+        public BufferPool getBufferPool() {
+            return pool;
+        }
+
+        private void read() {
+            ByteBuffer scratch = ByteBuffer.allocateDirect(Config.BLOCKING_READ_BUFFER);
+            LineFramer framer = user.getFramer();
+
+            try {
+                /* A line that fills a whole buffer can never complete */
+                while (!framer.isFull()) {
+                    int read = channel.read(framer.buffer(scratch));
+                    if (read < 0)
+                        break;
+
+                    Metrics.bytesRead.add(read);
+                    user.setLastReadAt(System.nanoTime());
+
+                    Protocol.processFramed(user, decoder);
+                    runTasks();
+
+                    while (user.getPausedUntil() != 0 && channel.isOpen()) {
+                        runTasks();
+                        long wait = user.getPausedUntil() - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(this, wait);
+                            continue;
+                        }
+                        user.setPausedUntil(0);
+                        Protocol.processFramed(user, decoder);
+                    }
+
+                    if (!channel.isOpen())
+                        break;
+
+                    framer.compact(pool);
+                }
+            } catch (CharacterCodingException cce) {
+                Log.event(LogEvent.PROTOCOL_ERROR, Log.peer(channel), cce);
+            } catch (IOException ie) {
+                /* Includes the asynchronous close from requestDisconnect */
+            } finally {
+                close();
+            }
+        }
+
+        private void write() {
+            while (channel.isOpen()) {
+                LockSupport.park(this);
+                drain();
+            }
+        }
+
+        /*
+         * Writes every queued frame, blocking while the socket is backed up.
+         * Whatever queues up meanwhile goes out as the next gathering write.
+         */
+        private void drain() {
+            writeLock.lock();
+            try {
+                OutboundQueue outbound = user.getOutbound();
+
+                while (true) {
+                    /*
+                     * The write below blocks while the peer isn't reading; the reaper watches how
+                     * long. Marked before the frames leave the queue, so the user never looks
+                     * flushed while they are still being written.
+                     */
+                    user.setStalledSince(System.nanoTime());
+                    int count = outbound.drainTo(batch);
+                    if (count == 0)
+                        break;
+
+                    do {
+                        Metrics.bytesWritten.add(channel.write(batch, 0, count));
+                        Metrics.writeCalls.increment();
+                    } while (batch[count - 1].hasRemaining());
+
+                    Metrics.framesWritten.add(count);
+                    Arrays.fill(batch, 0, count, null);
+                }
+                user.setStalledSince(0);
+            } catch (IOException ie) {
+                requestDisconnect(user);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void close() {
+            try {
+                user.delete();
+            } catch (IOException ie) {
+                Log.event(LogEvent.ERROR, Log.peer(channel), ie);
+            }
+
+            LockSupport.unpark(writer);
+            Log.event(LogEvent.CLOSE, Log.peer(channel));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size direct buffers carved out of one slab. Connections borrow a
+ * buffer only while they hold a partial line. A pool belongs to a single
+ * reactor and is only touched from its thread; the stats may be read from
+ * anywhere.
+ */
+public class BufferPool {
+    private final int bufferSize;
+
+    /* Free buffers, used as a stack so recently touched memory is reused first */
+    private final ByteBuffer[] free;
+    private int freeCount;
+
+    private volatile long hits = 0;
+    private volatile long misses = 0;
+    private volatile int inUse = 0;
+
+    public BufferPool(int buffers, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[buffers];
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(buffers * bufferSize);
+        for (int i = 0; i < buffers; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            free[i] = slab.slice();
+        }
+        freeCount = buffers;
+    }
+
+    public BufferPool() {
+        this(Config.POOL_BUFFERS, Config.POOL_BUFFER_SIZE);
+    }
+
+    /**
+     * Borrows a cleared buffer. If the slab is exhausted a new direct buffer is
+     * allocated, which counts as a miss.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer borrow() {
+        inUse++;
+
+        if (freeCount > 0) {
+            hits++;
+            ByteBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        }
+
+        misses++;
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back. Buffers beyond the pool size are left to the GC.
+     *
+     * @param buffer previously borrowed
+     */
+    public void release(ByteBuffer buffer) {
+        inUse--;
+        buffer.clear();
+
+        if (freeCount < free.length)
+            free[freeCount++] = buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of buffers currently borrowed
+     *
+     * @return the occupancy
+     */
+    public int getInUse() {
+        return inUse;
+    }
+
+    public int getCapacity() {
+        return free.length;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[inUse=" + inUse + "/" + free.length + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -26,7 +26,7 @@ public class ChatClient {
     // ser colocadas aqui
     private SocketChannel clientChannel;
 
-    private ByteBuffer buffer = ByteBuffer.allocate(16384);
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(16384);
 
     private Queue<Command> sentCommands = new LinkedList<>();
 
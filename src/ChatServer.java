@@ -4,6 +4,7 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 public class ChatServer {
 	/* Returns a charset object for the named charset. */
@@ -20,9 +21,14 @@ public class ChatServer {
 	/* A multiplexor of SelectableChannel objects. */
 	static private Selector selector;
 
-	private enum BufferState {
-		WAIT, READY, ABORT
-	};
+	/* Worker loops that own the accepted connections */
+	static private Reactor[] reactors;
+
+	static private int nextReactor = 0;
+
+	/* Cleared to have the acceptor close the listener, which it reports on closed */
+	static private volatile boolean accepting = true;
+	static private final CountDownLatch closed = new CountDownLatch(1);
 
 	static public void main(String argv[]) throws Exception {
 		int port;
@@ -35,11 +41,71 @@ public class ChatServer {
 			return;
 		}
 
-		openSocket(port);
+		Metrics.registerMBean();
+		AdminServer.start(Config.ADMIN_PORT);
 
-		while (true) {
-			run();
+		/*
+		 * Listen first, so a previous server handing over can stop accepting without
+		 * connections finding the port closed. Both queue up until the state is in.
+		 */
+		BlockingEngine engine = null;
+		if (Config.ENGINE == Engine.VIRTUAL)
+			engine = new BlockingEngine(port);
+		else
+			openSocket(port);
+		Handoff.takeOver(Config.HANDOFF_SOCKET);
+
+		Journal.start(Config.JOURNAL_DIR);
+		Cluster.start(Config.CLUSTER_NODES, Config.CLUSTER_NODE);
+
+		if (engine != null) {
+			Handoff.start(Config.HANDOFF_SOCKET, engine::stopAccepting);
+			engine.run();
+			return;
 		}
+
+		startReactors(Config.REACTORS);
+		Handoff.start(Config.HANDOFF_SOCKET, ChatServer::stopAccepting);
+
+		while (accepting) {
+			try {
+				run();
+			} catch (IOException ie) {
+				Log.event(LogEvent.ERROR, "acceptor", ie);
+			}
+		}
+
+		/* Connections already queued on this listener would be reset when it closes */
+		try {
+			SocketChannel pending;
+			while ((pending = ssc.accept()) != null)
+				if (Admission.admit(pending))
+					dispatch(pending);
+		} catch (IOException ie) {
+			Admission.acceptFailed(ie);
+		} finally {
+			ssc.close();
+			closed.countDown();
+		}
+	}
+
+	/* Closes the listener from any thread, returning once it is closed */
+	static private void stopAccepting() {
+		accepting = false;
+		selector.wakeup();
+
+		try {
+			closed.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* The reactors take turns owning new connections */
+	static private void dispatch(SocketChannel sc) {
+		Log.event(LogEvent.CONNECT, Log.peer(sc));
+		reactors[nextReactor].register(sc);
+		nextReactor = (nextReactor + 1) % reactors.length;
 	}
 
 	static private void openSocket(int port) throws Exception {
@@ -55,11 +121,15 @@ public class ChatServer {
 			/* Retrieves a server socket associated with this channel. */
 			ss = ssc.socket();
 
+			/* Lets the next server bind the port alongside this one when it takes over */
+			if (Handoff.isEnabled())
+				ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+
 			/*
 			 * Binds the channel's socket to a local address and configures the socket to
 			 * listen for connections.
 			 */
-			ss.bind(new InetSocketAddress(port));
+			ss.bind(new InetSocketAddress(port), Config.BACKLOG);
 
 			/*
 			 * A multiplexor of SelectableChannel objects. Create a new Selector for
@@ -77,7 +147,18 @@ public class ChatServer {
 		}
 	}
 
-	static private void run() throws Exception {
+	static private void startReactors(int count) throws IOException {
+		reactors = new Reactor[Math.max(1, count)];
+
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(i, reactors.length);
+			reactors[i].start();
+		}
+
+		System.out.println("Started " + reactors.length + " reactors");
+	}
+
+	static private void run() throws IOException {
 		/*
 		 * Selects a set of keys whose corresponding channels are ready for I/O
 		 * operations.
@@ -103,101 +184,23 @@ public class ChatServer {
 			 */
 			if (curKey.isAcceptable()) {
 				/*
-				 * Listens for a connection to be made to this socket and accepts it.
+				 * Accepts what is waiting, up to a batch per select; the key stays ready while
+				 * the backlog holds more. Connections past the admission limits are turned
+				 * away here, before a reactor ever sees them.
 				 */
-				Socket s = ss.accept();
-				System.out.println("Got connection from " + s);
-
-				/*
-				 * Returns the unique ServerSocketChannel object associated with this socket, if
-				 * any.
-				 */
-				SocketChannel sc = s.getChannel();
-
-				/* Make it non-blocking, so we can use a selector on it */
-				sc.configureBlocking(false);
-
-				/* Register it with the selector */
-				sc.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-
-				/* Create a new user */
-				User.create(sc);
-			} else if (curKey.isReadable()) {
-				SocketChannel sc = (SocketChannel) curKey.channel();
-				User u = User.getByChannel(sc);
-
-				try {
-					BufferState bufferState = getSocketInput(sc);
-
-					if (bufferState == BufferState.ABORT) {
-						if (u != null)
-							u.delete();
-
-						curKey.cancel();
-
-						Socket s = null;
-
-						try {
-							s = sc.socket();
-							System.out.println("Closing connection " + s);
-							s.close();
-						} catch (IOException ie) {
-							System.err.println("Error closing socket " + s + ": " + ie);
-						}
-					} else if (bufferState == BufferState.READY) {
-						ByteBuffer buffer = u.getBuffer();
-						String socketInput = decoder.decode(buffer).toString();
-
-						/*
-						 * Count the number of commands/messages in the buffer, i.e the number o \n
-						 */
-						int count = 0;
-
-						for (int i = 0; i < socketInput.length(); i++)
-							if (socketInput.charAt(i) == '\n')
-								count++;
-
-						/* Get the various tokens with \n as delimiter */
-						String[] token = socketInput.split("\n");
-
-						/* For each \n (aka command or message) we do something */
-						int i;
-						for (i = 0; i < count; i++)
-							Protocol.processInput(token[i], sc);
-
-						/*
-						 * Condition test if after we parsed the buffer there is still something there
-						 * that didn't end with new line
-						 */
-						if (i > count) {
-							/*
-							 * Atention to this statement the correct position WILL change with the
-							 * different types of encoding we use!
-							 */
-							buffer.position(buffer.limit() - token[i].length());
-
-							buffer.compact();
-						} else {
-							/*
-							 * Means that the last byte/bytes were the end of line if so we can simply clear
-							 * it
-							 */
-							buffer.clear();
-						}
-					}
-				} catch (IOException ie) {
-					if (u != null)
-						u.delete();
-
-					curKey.cancel();
-
+				for (int i = 0; i < Config.ACCEPT_BATCH; i++) {
+					SocketChannel sc;
 					try {
-						sc.close();
-					} catch (IOException ie2) {
-						System.out.println(ie2);
+						sc = ssc.accept();
+					} catch (IOException ie) {
+						/* Out of descriptors in a storm, say; the acceptor must outlive it */
+						Admission.acceptFailed(ie);
+						break;
 					}
-
-					System.out.println("Closed " + sc);
+					if (sc == null)
+						break;
+					if (Admission.admit(sc))
+						dispatch(sc);
 				}
 			}
 		}
@@ -205,36 +208,4 @@ public class ChatServer {
 		// We remove the selected keys, because we've dealt with them.
 		keySet.clear();
 	}
-
-	static private BufferState getSocketInput(SocketChannel sc) throws IOException {
-		ByteBuffer buffer = User.getByChannel(sc).getBuffer();
-
-		/*
-		 * Nothing was read but getSocketInput was still called meaning user must have
-		 * closed the connection
-		 */
-		if (sc.read(buffer) <= 0)
-			return BufferState.ABORT;
-
-		/* Save buffer curent possition */
-		int prevPos = buffer.position();
-
-		/*
-		 * Put buffer in a configuration to be possible to read it. We cannot simply
-		 * check last byte in buffer
-		 */
-		buffer.flip();
-		String input = decoder.decode(buffer).toString();
-
-		/* Revert back to the previous configuration */
-		buffer.position(prevPos);
-		buffer.limit(buffer.capacity());
-
-		if (input.contains("\n")) {
-			buffer.flip();
-			return BufferState.READY;
-		} else {
-			return BufferState.WAIT;
-		}
-	}
 }
@@ -0,0 +1,449 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional clustering of several servers over a ClusterBus. Each node keeps
+ * its own connections and rooms; room events and messages are forwarded to
+ * every other node, which hands them to its local members of the same room.
+ *
+ * Nicknames are unique across the cluster. Every node holds a replica of the
+ * directory of nicknames and the node each one lives on, so a /priv is
+ * routed without asking anyone. Uniqueness is decided by the owner of the
+ * nickname, picked among the nodes that are up by rendezvous hashing: a node
+ * claims a nickname from its owner, giving up after
+ * chat.cluster.claimTimeoutMillis, then tells everyone. The claim never
+ * blocks the event loop; the /nick completes when the answer comes. The directory entries
+ * of a node that goes down are dropped, and a node coming up is told every
+ * nickname of the others.
+ */
+public class Cluster implements ClusterBus.Listener {
+    private static final byte ROOM = 1;
+    private static final byte PRIVATE = 2;
+    private static final byte CLAIM = 3;
+    private static final byte CLAIMED = 4;
+    private static final byte NICK_UP = 5;
+    private static final byte NICK_DOWN = 6;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /* Claims decided without asking another node */
+    private static final CompletableFuture<Boolean> GRANTED = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> REFUSED = CompletableFuture.completedFuture(false);
+
+    /* Null while clustering is disabled */
+    private static volatile Cluster instance;
+
+    private final ClusterBus bus;
+    private final int self;
+
+    /* Nickname to the node its user is connected to, for the whole cluster */
+    private final Map<String, Integer> directory = new ConcurrentHashMap<>();
+
+    /* Claims waiting for their owner's answer, by request number */
+    private final Map<Long, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong();
+
+    private Cluster(ClusterBus bus) {
+        this.bus = bus;
+        this.self = bus.self();
+    }
+
+    /**
+     * Joins the cluster
+     *
+     * @param nodes comma separated host:port of every node, the same list and
+     *              order on all of them; null to leave clustering disabled
+     * @param self  index of this node in the list
+     */
+    public static void start(String nodes, int self) {
+        if (nodes == null)
+            return;
+
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            int colon = node.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(node.substring(0, colon).trim(),
+                    Integer.parseInt(node.substring(colon + 1).trim())));
+        }
+
+        if (self < 0 || self >= addresses.size()) {
+            System.err.println("Cluster node " + self + " is not in " + nodes);
+            return;
+        }
+
+        try {
+            Cluster cluster = new Cluster(new TcpMeshBus(addresses, self));
+            instance = cluster;
+            cluster.bus.start(cluster);
+            System.out.println("Cluster node " + self + " of " + addresses.size() + " on " + addresses.get(self));
+        } catch (IOException ie) {
+            instance = null;
+            System.err.println("Error joining cluster " + nodes + ": " + ie);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * Gets the nodes that are reachable, this one included
+     *
+     * @return 1 when clustering is disabled
+     */
+    public static int nodesUp() {
+        Cluster cluster = instance;
+        if (cluster == null)
+            return 1;
+
+        int up = 0;
+        for (int node = 0; node < cluster.bus.size(); node++)
+            if (cluster.bus.isUp(node))
+                up++;
+        return up;
+    }
+
+    /**
+     * Reserves a nickname for a local user across the cluster. Never waits:
+     * when the nickname is owned by another node, the answer completes later,
+     * on a bus or timer thread.
+     *
+     * @param nick to reserve, already reserved locally
+     * @return completes with false if a user elsewhere has it, or the owner
+     *         didn't answer in time; already complete if decided here
+     */
+    public static CompletableFuture<Boolean> claim(String nick) {
+        Cluster cluster = instance;
+        return cluster == null ? GRANTED : cluster.claimNick(nick);
+    }
+
+    /**
+     * Gives a nickname back
+     *
+     * @param nick no local user has any more
+     */
+    public static void release(String nick) {
+        Cluster cluster = instance;
+        if (cluster != null && cluster.directory.remove(nick, cluster.self))
+            cluster.sendAll(message(NICK_DOWN).string(nick).bytes());
+    }
+
+    /**
+     * Forwards a room event to the other nodes, for their members of the room
+     *
+     * @param room name of the room
+     * @param type of the event
+     * @param data its arguments, as for MessagingUtils.encode
+     */
+    public static void forward(String room, MessageType type, String... data) {
+        Cluster cluster = instance;
+        if (cluster == null || !cluster.anyPeerUp())
+            return;
+
+        Message message = message(ROOM).time().string(room).type(type);
+        message.count(data.length);
+        for (String item : data)
+            message.string(item);
+        cluster.sendAll(message.bytes());
+    }
+
+    /**
+     * Sends a private message to a user on another node
+     *
+     * @param target nickname of the recipient
+     * @param sender nickname of the sender
+     * @param text   the message
+     * @return false if no node has such a user
+     */
+    public static boolean sendPrivate(String target, String sender, String text) {
+        Cluster cluster = instance;
+        if (cluster == null)
+            return false;
+
+        Integer node = cluster.directory.get(target);
+        if (node == null || node == cluster.self)
+            return false;
+
+        return cluster.send(node, message(PRIVATE).time().string(target).string(sender).string(text).bytes());
+    }
+
+    private CompletableFuture<Boolean> claimNick(String nick) {
+        int owner = owner(nick);
+
+        if (owner == self) {
+            if (!reserve(nick, self))
+                return REFUSED;
+            sendAll(message(NICK_UP).string(nick).bytes());
+            return GRANTED;
+        }
+
+        long request = nextRequest.incrementAndGet();
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        claims.put(request, answer);
+
+        if (!send(owner, message(CLAIM).number(request).string(nick).bytes())) {
+            claims.remove(request);
+            return REFUSED;
+        }
+
+        return answer.orTimeout(Config.CLUSTER_CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .handle((granted, timeout) -> {
+                    claims.remove(request);
+
+                    if (timeout != null) {
+                        /* The owner may still grant it; give it back so the nickname isn't held by nobody */
+                        send(owner, message(NICK_DOWN).string(nick).bytes());
+                        return false;
+                    }
+                    if (!granted)
+                        return false;
+
+                    directory.compute(nick, (key, holder) -> {
+                        if (holder != null && holder != self)
+                            NameIds.release(NameIds.find(key));
+                        return self;
+                    });
+                    sendAll(message(NICK_UP).string(nick).bytes());
+                    return true;
+                });
+    }
+
+    /*
+     * Records a nickname for a node unless another node has it. A nickname
+     * held elsewhere keeps its name interned here meanwhile, so binary
+     * clients see the same id in every frame from that user.
+     */
+    private boolean reserve(String nick, int node) {
+        Integer holder = directory.compute(nick, (key, current) -> {
+            if (current != null)
+                return current;
+            if (node != self)
+                NameIds.acquire(key);
+            return node;
+        });
+        return holder == node;
+    }
+
+    /* Forgets a node's nickname, and the name held for it */
+    private void drop(String nick, int node) {
+        directory.computeIfPresent(nick, (key, holder) -> {
+            if (holder != node)
+                return holder;
+            if (node != self)
+                NameIds.release(NameIds.find(key));
+            return null;
+        });
+    }
+
+    /* Rendezvous hashing over the nodes that are up, so a node going down only moves its own nicknames */
+    private int owner(String nick) {
+        int owner = self;
+        long best = Long.MIN_VALUE;
+
+        for (int node = 0; node < bus.size(); node++) {
+            if (!bus.isUp(node))
+                continue;
+
+            long score = mix(nick.hashCode() * 0x9E3779B97F4A7C15L + node);
+            if (score > best) {
+                best = score;
+                owner = node;
+            }
+        }
+
+        return owner;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private boolean anyPeerUp() {
+        for (int node = 0; node < bus.size(); node++)
+            if (node != self && bus.isUp(node))
+                return true;
+        return false;
+    }
+
+    private void sendAll(byte[] message) {
+        for (int node = 0; node < bus.size(); node++)
+            if (node != self && bus.isUp(node))
+                send(node, message);
+    }
+
+    private boolean send(int node, byte[] message) {
+        if (bus.send(node, message)) {
+            Metrics.clusterSent.increment();
+            return true;
+        }
+
+        Metrics.clusterDropped.increment();
+        return false;
+    }
+
+    @Override
+    public void onMessage(int from, byte[] bytes) {
+        Metrics.clusterReceived.increment();
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            switch (in.readByte()) {
+                case ROOM: {
+                    long sent = in.readLong();
+                    String room = readString(in);
+                    MessageType type = TYPES[in.readByte()];
+                    String[] data = new String[in.readByte()];
+                    for (int i = 0; i < data.length; i++)
+                        data[i] = readString(in);
+                    Room.deliver(room, type, data);
+                    hop(sent);
+                    break;
+                }
+                case PRIVATE: {
+                    long sent = in.readLong();
+                    User target = User.getByName(readString(in));
+                    String sender = readString(in);
+                    String text = readString(in);
+                    if (target != null) {
+                        Name name = NameIds.acquire(sender);
+                        MessagingUtils.sendMessage(target, MessageType.PRIVATE, name, text);
+                        NameIds.release(name);
+                    }
+                    hop(sent);
+                    break;
+                }
+                case CLAIM: {
+                    long request = in.readLong();
+                    boolean granted = reserve(readString(in), from);
+                    send(from, message(CLAIMED).number(request).flag(granted).bytes());
+                    break;
+                }
+                case CLAIMED: {
+                    CompletableFuture<Boolean> answer = claims.get(in.readLong());
+                    if (answer != null)
+                        answer.complete(in.readBoolean());
+                    break;
+                }
+                case NICK_UP: {
+                    String nick = readString(in);
+                    if (!reserve(nick, from))
+                        System.err.println("Nickname " + nick + " taken on node " + directory.get(nick)
+                                + " and on node " + from);
+                    break;
+                }
+                case NICK_DOWN:
+                    drop(readString(in), from);
+                    break;
+                default:
+                    System.err.println("Unknown cluster message from node " + from);
+            }
+        } catch (IOException ie) {
+            System.err.println("Bad cluster message from node " + from + ": " + ie);
+        }
+    }
+
+    @Override
+    public void onNodeUp(int node) {
+        /* The newcomer learns every nickname here, owned by it or not */
+        for (Map.Entry<String, Integer> entry : directory.entrySet())
+            if (entry.getValue() == self)
+                send(node, message(NICK_UP).string(entry.getKey()).bytes());
+    }
+
+    @Override
+    public void onNodeDown(int node) {
+        for (Map.Entry<String, Integer> entry : directory.entrySet())
+            if (entry.getValue() == node)
+                drop(entry.getKey(), node);
+    }
+
+    /* Time a message spent between nodes, clocks permitting */
+    private static void hop(long sentMicros) {
+        Metrics.clusterHop.record((now() - sentMicros) * 1000);
+    }
+
+    private static long now() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Message message(byte kind) {
+        return new Message(kind);
+    }
+
+    /* Builds one bus message */
+    private static final class Message {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Message(byte kind) {
+            bytes.write(kind);
+        }
+
+        Message time() {
+            return number(now());
+        }
+
+        Message number(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException ie) {
+                throw new UncheckedIOException(ie);
+            }
+            return this;
+        }
+
+        Message flag(boolean value) {
+            bytes.write(value ? 1 : 0);
+            return this;
+        }
+
+        Message type(MessageType type) {
+            bytes.write(type.ordinal());
+            return this;
+        }
+
+        Message count(int count) {
+            bytes.write(count);
+            return this;
+        }
+
+        Message string(String value) {
+            byte[] utf8 = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            try {
+                out.writeInt(utf8.length);
+            } catch (IOException ie) {
+                throw new UncheckedIOException(ie);
+            }
+            bytes.write(utf8, 0, utf8.length);
+            return this;
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.IOException;
+
+/**
+ * Carries opaque messages between the nodes of a cluster, numbered from 0.
+ * Messages from one node to another arrive in order, at most once; a message
+ * to a node that is down is dropped. Listener callbacks come from the bus's
+ * own threads.
+ */
+public interface ClusterBus {
+    interface Listener {
+        void onMessage(int from, byte[] message);
+
+        /* A node became reachable; messages sent from now on reach it */
+        void onNodeUp(int node);
+
+        void onNodeDown(int node);
+    }
+
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Gets the number of this node
+     *
+     * @return its index in the cluster
+     */
+    int self();
+
+    /**
+     * Gets the number of nodes configured, up or not
+     *
+     * @return the cluster size
+     */
+    int size();
+
+    boolean isUp(int node);
+
+    /**
+     * Queues a message for a node. Never blocks.
+     *
+     * @param node    to send to, not this one
+     * @param message to send, owned by the bus from now on
+     * @return false if it was dropped
+     */
+    boolean send(int node, byte[] message);
+}
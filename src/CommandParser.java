@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Parses one input line without allocating. The command is picked from the
+ * first characters and its arguments are kept as offsets into the line; only
+ * the accessors that return a String create one, when the caller needs it.
+ *
+ * An instance is reused line after line, so it must not be shared between
+ * threads.
+ */
+public class CommandParser implements Request {
+    public static enum Command {
+        /* Plain text, or text escaped with a leading "//" */
+        MESSAGE,
+        NICK, JOIN, LEAVE, PRIV, BYE,
+        /* Starts with '/' but isn't a known command, or is empty */
+        UNKNOWN
+    };
+
+    private String line;
+    private Command command;
+
+    /* Offset of the message text, 1 when a "//" escape must be skipped */
+    private int textStart;
+
+    /* First argument, [argStart, argEnd) */
+    private int argStart;
+    private int argEnd;
+
+    /* Whatever follows the first argument and its separating space */
+    private int restStart;
+
+    /**
+     * Parses a line, without its terminator
+     *
+     * @param line to parse
+     * @return the command found
+     */
+    public Command parse(String line) {
+        this.line = line;
+        this.textStart = 0;
+        this.argStart = this.argEnd = this.restStart = line.length();
+
+        int length = line.length();
+
+        if (length == 0) {
+            command = Command.UNKNOWN;
+            return command;
+        }
+
+        if (line.charAt(0) != '/') {
+            command = Command.MESSAGE;
+            return command;
+        }
+
+        if (length > 1 && line.charAt(1) == '/') {
+            textStart = 1;
+            command = Command.MESSAGE;
+            return command;
+        }
+
+        int nameEnd = line.indexOf(' ');
+        if (nameEnd < 0)
+            nameEnd = length;
+
+        command = lookup(line, nameEnd);
+
+        if (nameEnd < length) {
+            argStart = nameEnd + 1;
+            argEnd = line.indexOf(' ', argStart);
+            if (argEnd < 0)
+                argEnd = length;
+            restStart = Math.min(argEnd + 1, length);
+        }
+
+        return command;
+    }
+
+    /* Matches the command word, i.e line[0, end), without building it */
+    private static Command lookup(String line, int end) {
+        switch (end) {
+            case 4:
+                if (line.startsWith("/bye"))
+                    return Command.BYE;
+                break;
+            case 5:
+                if (line.startsWith("/nick"))
+                    return Command.NICK;
+                if (line.startsWith("/join"))
+                    return Command.JOIN;
+                if (line.startsWith("/priv"))
+                    return Command.PRIV;
+                break;
+            case 6:
+                if (line.startsWith("/leave"))
+                    return Command.LEAVE;
+                break;
+        }
+
+        return Command.UNKNOWN;
+    }
+
+    @Override
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Checks for exactly one non-empty argument. Trailing spaces are allowed,
+     * as they were when lines were split on spaces.
+     *
+     * @return if the line is "/command argument"
+     */
+    @Override
+    public boolean hasSingleArgument() {
+        if (argEnd == argStart)
+            return false;
+
+        for (int i = argEnd; i < line.length(); i++)
+            if (line.charAt(i) != ' ')
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Checks for an argument followed by free text, which may be empty
+     *
+     * @return if the line is "/command argument text"
+     */
+    @Override
+    public boolean hasArgumentAndText() {
+        return argEnd < line.length();
+    }
+
+    /**
+     * Gets the first argument
+     *
+     * @return the argument
+     */
+    @Override
+    public String argument() {
+        return line.substring(argStart, argEnd);
+    }
+
+    /**
+     * Gets everything after the first argument
+     *
+     * @return the remaining text
+     */
+    @Override
+    public String rest() {
+        return line.substring(restStart);
+    }
+
+    /**
+     * Gets the text of a message, without its escape
+     *
+     * @return the text
+     */
+    @Override
+    public String text() {
+        return textStart == 0 ? line : line.substring(textStart);
+    }
+
+    /* Text lines are decoded as a whole, there are no raw bytes to forward */
+    @Override
+    public ByteBuffer payload() {
+        return null;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Server tunables, read once from system properties (-Dchat.*).
+ */
+public class Config {
+
+    private Config() {
+    }
+
+    /* Selector loops, or a blocking thread pair per connection */
+    public static final Engine ENGINE = enumProperty("chat.engine", Engine.REACTOR);
+
+    /* Number of worker selector loops the acceptor spreads connections over */
+    public static final int REACTORS = intProperty("chat.reactors", Runtime.getRuntime().availableProcessors());
+
+    /* Outbound queue bounds per user, in frames and in bytes */
+    public static final int OUTBOUND_MAX_FRAMES = intProperty("chat.outbound.maxFrames", 1024);
+    public static final int OUTBOUND_MAX_BYTES = intProperty("chat.outbound.maxBytes", 1 << 20);
+
+    /* Cap on one gathering write, 0 for a write per frame */
+    public static final int BATCH_MAX_BYTES = intProperty("chat.batch.maxBytes", 64 * 1024);
+
+    /* Longest a reactor holds queued frames back while it handles the rest of a wake-up */
+    public static final int BATCH_MAX_DELAY_MICROS = intProperty("chat.batch.maxDelayMicros", 1000);
+
+    /* What happens to a user whose outbound queue is full */
+    public static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = enumProperty("chat.slowConsumer",
+            SlowConsumerPolicy.DROP_OLDEST);
+
+    /*
+     * Read buffers pooled per reactor, and their size, which caps the length of a line. Kept small enough that the
+     * longest line, sent on as a binary frame with the 4 byte sender id and the type in front, still fits one.
+     */
+    public static final int POOL_BUFFERS = intProperty("chat.pool.buffers", 256);
+    public static final int POOL_BUFFER_SIZE = Math.min(intProperty("chat.pool.bufferSize", 16384),
+            BinaryCodec.MAX_FRAME - 4);
+
+    /* Messages each room keeps and replays on join, 0 to keep none */
+    public static final int HISTORY_DEPTH = intProperty("chat.history.depth", 50);
+
+    /* Budget for the histories of all rooms together; past it the oldest frames go first */
+    public static final long HISTORY_MAX_BYTES = intProperty("chat.history.maxBytes", 32 << 20);
+
+    /* Directory of the message journal; unset leaves journaling off */
+    public static final String JOURNAL_DIR = System.getProperty("chat.journal.dir");
+
+    /* Size of each mapped journal segment */
+    public static final int JOURNAL_SEGMENT_BYTES = intProperty("chat.journal.segmentBytes", 64 << 20);
+
+    /* Group commit: the longest a journaled record waits before it is forced to disk */
+    public static final int JOURNAL_COMMIT_MILLIS = intProperty("chat.journal.commitMillis", 10);
+
+    /* Records waiting for the journal thread; past this they are dropped, never waited on */
+    public static final int JOURNAL_QUEUE = intProperty("chat.journal.queue", 65536);
+
+    /* Oldest segments are deleted past either limit; 0 hours keeps them regardless of age */
+    public static final int JOURNAL_RETENTION_MEGABYTES = intProperty("chat.journal.retentionMegabytes", 1024);
+    public static final int JOURNAL_RETENTION_HOURS = intProperty("chat.journal.retentionHours", 168);
+
+    /* Per connection read buffer of the blocking engine; longer lines move to a pool-sized buffer */
+    public static final int BLOCKING_READ_BUFFER = intProperty("chat.blocking.readBuffer", 2048);
+
+    /* Binary frames with a shorter body go out uncompressed to clients that asked for compression */
+    public static final int COMPRESS_MIN_BYTES = intProperty("chat.compress.minBytes", 256);
+
+    /* Deflate level, 1 (fastest) to 9 (smallest) */
+    public static final int COMPRESS_LEVEL = intProperty("chat.compress.level", 1);
+
+    /*
+     * Commands per second and burst for each user, and messages per second and
+     * burst into each room; 0 is off, the default, so that turning limits on
+     * is a deployment's choice. The bursts apply once a rate is set.
+     */
+    public static final int RATE_USER = intProperty("chat.rate.user", 0);
+    public static final int RATE_USER_BURST = intProperty("chat.rate.userBurst", 200);
+    public static final int RATE_ROOM = intProperty("chat.rate.room", 0);
+    public static final int RATE_ROOM_BURST = intProperty("chat.rate.roomBurst", 4000);
+
+    /* What happens to a command over either limit */
+    public static final RateLimitPolicy RATE_POLICY = enumProperty("chat.rate.policy", RateLimitPolicy.REJECT);
+
+    /*
+     * Connections are dropped without a nickname after, or with nothing read for, or output stuck for; 0 is off.
+     * The protocol has no keepalive, so a user who only reads would look idle: the first two are opt-in.
+     */
+    public static final int TIMEOUT_HANDSHAKE_MILLIS = intProperty("chat.timeout.handshakeMillis", 0);
+    public static final int TIMEOUT_IDLE_MILLIS = intProperty("chat.timeout.idleMillis", 0);
+    public static final int TIMEOUT_WRITE_STALL_MILLIS = intProperty("chat.timeout.writeStallMillis", 30_000);
+
+    /* Resolution of the timing wheel that drives those timeouts */
+    public static final int TIMEOUT_TICK_MILLIS = intProperty("chat.timeout.tickMillis", 100);
+
+    /* Comma separated host:port of every cluster node, the same on all; unset runs a single server */
+    public static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes");
+
+    /* Index of this server in the cluster node list */
+    public static final int CLUSTER_NODE = intProperty("chat.cluster.node", 0);
+
+    /* Messages waiting for one peer before new ones are dropped */
+    public static final int CLUSTER_QUEUE = intProperty("chat.cluster.queue", 65536);
+
+    /* Longest a /nick waits for the node deciding on the nickname */
+    public static final int CLUSTER_CLAIM_TIMEOUT_MILLIS = intProperty("chat.cluster.claimTimeoutMillis", 500);
+
+    /* Pending connections the kernel queues for the listener; also capped by net.core.somaxconn */
+    public static final int BACKLOG = intProperty("chat.backlog", 4096);
+
+    /* Connections accepted per select, and handed to a reactor per wake-up, so a reconnect storm can't hog either */
+    public static final int ACCEPT_BATCH = intProperty("chat.accept.batch", 64);
+
+    /* Open connections past which new ones are refused, 0 for no limit */
+    public static final int MAX_CONNECTIONS = intProperty("chat.maxConnections", 0);
+
+    /* New connections per second and burst past which they are refused, 0 for no limit */
+    public static final int ACCEPT_RATE = intProperty("chat.accept.rate", 0);
+    public static final int ACCEPT_BURST = intProperty("chat.accept.burst", 1000);
+
+    /* Unix domain socket a restarted server asks this one to hand over on; unset to disable */
+    public static final String HANDOFF_SOCKET = System.getProperty("chat.handoff.socket");
+
+    /* Connections are told BYE spread over this long when the server drains, so they don't all reconnect at once */
+    public static final int DRAIN_MILLIS = intProperty("chat.drain.millis", 5_000);
+
+    /* Frames one reactor can post to another's users before the rest wait on the sender's side */
+    public static final int MAILBOX_SIZE = intProperty("chat.mailbox.size", 1024);
+
+    /* Events waiting for the log thread before new ones are dropped */
+    public static final int LOG_QUEUE = intProperty("chat.log.queue", 16384);
+
+    /* Loopback port serving plain-text metrics, negative to disable */
+    public static final int ADMIN_PORT = intProperty("chat.admin.port", -1);
+
+    /**
+     * Reads an integer property, falling back to the default if unset or invalid
+     *
+     * @param name of the property
+     * @param def  default value
+     * @return the value
+     */
+    static int intProperty(String name, int def) {
+        try {
+            return Integer.parseInt(System.getProperty(name, Integer.toString(def)).trim());
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
+    /**
+     * Reads an enum property by constant name, case insensitive
+     *
+     * @param name of the property
+     * @param def  default value
+     * @return the value
+     */
+    static <E extends Enum<E>> E enumProperty(String name, E def) {
+        try {
+            return Enum.valueOf(def.getDeclaringClass(), System.getProperty(name, def.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return def;
+        }
+    }
+}
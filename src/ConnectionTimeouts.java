@@ -0,0 +1,90 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a connection is given up on: still without a nickname after the
+ * handshake timeout, nothing read for the idle timeout, or output backed up
+ * without moving for the write-stall timeout. A timeout of 0 is off.
+ *
+ * Each connection has one wheel timer. It is not moved on every read; when
+ * it fires, the connection's timestamps are checked and it is rescheduled
+ * for the next deadline if nothing expired. It fires at least every half
+ * write-stall timeout, so a stall is noticed within 1.5 times its timeout.
+ * The same timer ends a rate limit pause.
+ */
+public class ConnectionTimeouts {
+    public enum Reason {
+        HANDSHAKE, IDLE, WRITE_STALL
+    }
+
+    private static final long HANDSHAKE_NANOS = TimeUnit.MILLISECONDS.toNanos(Config.TIMEOUT_HANDSHAKE_MILLIS);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Config.TIMEOUT_IDLE_MILLIS);
+    private static final long WRITE_STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(Config.TIMEOUT_WRITE_STALL_MILLIS);
+
+    public static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.TIMEOUT_TICK_MILLIS));
+
+    private ConnectionTimeouts() {
+    }
+
+    public static boolean isEnabled() {
+        return HANDSHAKE_NANOS > 0 || IDLE_NANOS > 0 || WRITE_STALL_NANOS > 0;
+    }
+
+    /**
+     * Gets a wheel sized so the longest timeout fits in one turn
+     *
+     * @return a new wheel
+     */
+    public static TimingWheel newWheel() {
+        long longest = Math.max(HANDSHAKE_NANOS, Math.max(IDLE_NANOS, WRITE_STALL_NANOS));
+        int slots = (int) Math.min(1 << 12, Math.max(64, longest / TICK_NANOS + 1));
+        return new TimingWheel(TICK_NANOS, slots, System.nanoTime());
+    }
+
+    /**
+     * Gets when the user's timer should fire next
+     *
+     * @param user to check
+     * @param now  by System.nanoTime()
+     * @return the deadline, by System.nanoTime(); Long.MAX_VALUE for none
+     */
+    public static long deadline(User user, long now) {
+        long deadline = Long.MAX_VALUE;
+
+        if (user.getPausedUntil() != 0)
+            deadline = user.getPausedUntil();
+        if (HANDSHAKE_NANOS > 0 && user.getCurrentState() == Protocol.State.INIT)
+            deadline = Math.min(deadline, user.getConnectedAt() + HANDSHAKE_NANOS);
+        if (IDLE_NANOS > 0)
+            deadline = Math.min(deadline, user.getLastReadAt() + IDLE_NANOS);
+        if (WRITE_STALL_NANOS > 0) {
+            long stalledSince = user.getStalledSince();
+            if (stalledSince != 0)
+                deadline = Math.min(deadline, stalledSince + WRITE_STALL_NANOS);
+            deadline = Math.min(deadline, now + WRITE_STALL_NANOS / 2);
+        }
+
+        return deadline;
+    }
+
+    /**
+     * Checks the user's timestamps
+     *
+     * @param user to check
+     * @param now  by System.nanoTime()
+     * @return why the user timed out, or null if it hasn't
+     */
+    public static Reason expired(User user, long now) {
+        if (HANDSHAKE_NANOS > 0 && user.getCurrentState() == Protocol.State.INIT
+                && now - user.getConnectedAt() >= HANDSHAKE_NANOS)
+            return Reason.HANDSHAKE;
+
+        long stalledSince = user.getStalledSince();
+        if (WRITE_STALL_NANOS > 0 && stalledSince != 0 && now - stalledSince >= WRITE_STALL_NANOS)
+            return Reason.WRITE_STALL;
+
+        if (IDLE_NANOS > 0 && now - user.getLastReadAt() >= IDLE_NANOS)
+            return Reason.IDLE;
+
+        return null;
+    }
+}
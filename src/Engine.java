@@ -0,0 +1,9 @@
+/**
+ * How the server runs its connections.
+ */
+public enum Engine {
+    /* Worker selector loops, each multiplexing many non-blocking channels */
+    REACTOR,
+    /* A blocking reader and writer thread per connection, virtual where the runtime has them */
+    VIRTUAL
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The owner of a user's channel: the only thread that writes to it or tears
+ * it down. Other threads go through these methods.
+ */
+public interface EventLoop {
+    /**
+     * Gets the user's outbound queue written out, right away when called from
+     * the owner, otherwise as soon as the owner gets to it
+     *
+     * @param user to flush
+     */
+    void requestFlush(User user);
+
+    /**
+     * Sends a frame from one of this loop's users to any user, whichever loop
+     * owns it. Called on this loop.
+     *
+     * @param target to send to
+     * @param frame  to send, owned by the target from now on
+     */
+    void deliver(User target, ByteBuffer frame);
+
+    /**
+     * Tears the user down on the owner. Never runs inline, so it is safe to
+     * call in the middle of a room broadcast.
+     *
+     * @param user to disconnect
+     */
+    void requestDisconnect(User user);
+
+    /**
+     * Stops handling the user's input until the given time; whatever was
+     * already read waits in its framer. Must run on the owner.
+     *
+     * @param user  to pause
+     * @param until by System.nanoTime()
+     */
+    void pauseReading(User user, long until);
+
+    /**
+     * Reads again before the pause set by pauseReading is over, handling
+     * whatever input waited meanwhile first. Must run on the owner.
+     *
+     * @param user to resume
+     */
+    void resumeReading(User user);
+
+    /**
+     * Runs a task on the owner, such as the end of a command that waited on
+     * another thread
+     *
+     * @param task to run
+     */
+    void execute(Runnable task);
+
+    /**
+     * Forgets a user whose connection is closing, such as its timeouts
+     *
+     * @param user being deleted
+     */
+    void closed(User user);
+
+    /**
+     * Gets the pool the user's partial lines are kept in
+     *
+     * @return the pool
+     */
+    BufferPool getBufferPool();
+}
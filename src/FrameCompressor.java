@@ -0,0 +1,89 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates binary frames for clients that negotiated compression. Each frame
+ * is compressed on its own, with no context carried between frames, so one
+ * compressed frame can be shared by every recipient of a broadcast.
+ *
+ * A compressed frame has the high bit set on its type byte and its body is
+ * the original body length, an unsigned short, then the raw deflate stream
+ * of that body. Frames with a body under chat.compress.minBytes, or that
+ * would not shrink, are sent as they are.
+ */
+public class FrameCompressor {
+    public static final int COMPRESSED = 0x80;
+
+    /* Type, original body length */
+    private static final int HEADER_BYTES = 3;
+
+    /* A deflater and room for its output, borrowed by whichever thread is compressing */
+    private static final class Context {
+        final Deflater deflater = new Deflater(Config.COMPRESS_LEVEL, true);
+        final byte[] output = new byte[0xFFFF];
+    }
+
+    /* Deflaters hold native memory, so they are pooled rather than kept per thread */
+    private static final ConcurrentLinkedQueue<Context> idle = new ConcurrentLinkedQueue<>();
+
+    /* Set once a client asks for compression */
+    private static volatile boolean inUse = false;
+
+    private FrameCompressor() {
+    }
+
+    public static void negotiated() {
+        if (!inUse)
+            inUse = true;
+    }
+
+    public static boolean inUse() {
+        return inUse;
+    }
+
+    /**
+     * Compresses a binary frame if that is worth it
+     *
+     * @param frame length, type and body, as built by BinaryCodec
+     * @return a read-only compressed frame, or the same frame
+     */
+    public static ByteBuffer compress(ByteBuffer frame) {
+        int body = frame.remaining() - HEADER_BYTES;
+        if (body < Config.COMPRESS_MIN_BYTES)
+            return frame;
+
+        long start = System.nanoTime();
+        Context context = idle.poll();
+        if (context == null)
+            context = new Context();
+
+        try {
+            Deflater deflater = context.deflater;
+            deflater.reset();
+            deflater.setInput(frame.duplicate().position(frame.position() + HEADER_BYTES));
+            deflater.finish();
+
+            /* Anything that doesn't come out smaller than the frame it replaces is given up on */
+            int room = body - HEADER_BYTES;
+            int size = room > 0 ? deflater.deflate(context.output, 0, room) : 0;
+            if (!deflater.finished()) {
+                Metrics.compressIncompressible.increment();
+                return frame;
+            }
+
+            int type = frame.get(frame.position() + 2) & 0xFF;
+            ByteBuffer compressed = ByteBuffer.allocate(2 + HEADER_BYTES + size);
+            compressed.putShort((short) (HEADER_BYTES + size)).put((byte) (type | COMPRESSED))
+                    .putShort((short) body).put(context.output, 0, size).flip();
+
+            Metrics.compressedFrames.increment();
+            Metrics.compressBytesIn.add(frame.remaining());
+            Metrics.compressBytesOut.add(compressed.remaining());
+            return compressed.asReadOnlyBuffer();
+        } finally {
+            idle.offer(context);
+            Metrics.compressDuration.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Restarts without dropping the service. Draining stops accepting, then
+ * tells every connection BYE and closes it once the BYE is out, spread over
+ * chat.drain.millis so clients come back a few at a time instead of all at
+ * once. A server drains when it is terminated.
+ *
+ * With chat.handoff.socket set, the listening port is bound with
+ * SO_REUSEPORT and the server waits on that Unix domain socket for its
+ * successor. A new server started with the same settings binds the port
+ * next to it, connects, and gets the room histories; the old server stops
+ * accepting, drains, and exits, and the clients it says BYE to reconnect
+ * to the new one. Open connections can't move between processes, so they
+ * reconnect rather than carry over.
+ *
+ * The journal, if any, is committed and closed by the old server before the
+ * new one recovers from it, in which case the histories are not sent. A
+ * cluster node can only drain: its successor could not bind the bus port.
+ */
+public class Handoff implements Runnable {
+    /* How long a connection told BYE gets to read it once the drain itself is over */
+    private static final long BYE_GRACE_NANOS = 1_000_000_000L;
+
+    private static final AtomicBoolean draining = new AtomicBoolean();
+
+    /* Closes the engine's listener; set by whoever owns it */
+    private static volatile Runnable stopAccepting = () -> {
+    };
+
+    private final Path path;
+    private final ServerSocketChannel server;
+
+    private Handoff(Path path) throws IOException {
+        this.path = path;
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        Files.deleteIfExists(path);
+        server.bind(UnixDomainSocketAddress.of(path));
+    }
+
+    /**
+     * Checks if restarts hand over to the next server
+     *
+     * @return if a handoff socket is configured
+     */
+    public static boolean isEnabled() {
+        return Config.HANDOFF_SOCKET != null;
+    }
+
+    /**
+     * Asks the server running on the handoff socket, if any, to hand over.
+     * Returns once it has stopped accepting and sent its state, so the
+     * caller must already be listening on the port.
+     *
+     * @param path of the handoff socket, null if disabled
+     */
+    public static void takeOver(String path) {
+        if (path == null)
+            return;
+
+        SocketChannel previous;
+        try {
+            previous = SocketChannel.open(UnixDomainSocketAddress.of(path));
+        } catch (IOException ie) {
+            /* Nobody there, this is the first server */
+            return;
+        }
+
+        try (previous) {
+            long start = System.nanoTime();
+            int rooms = receive(new DataInputStream(Channels.newInputStream(previous)));
+            System.out.printf("Took over from the previous server with %d rooms in %.1f ms%n", rooms,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException ie) {
+            System.err.println("Error taking over from the previous server: " + ie);
+        }
+    }
+
+    /**
+     * Drains on termination, and waits for a successor on the handoff socket
+     *
+     * @param path          of the handoff socket, null if disabled
+     * @param stopAccepting closes the listener, and returns once no more
+     *                      connections will be accepted
+     */
+    public static void start(String path, Runnable stopAccepting) {
+        Handoff.stopAccepting = stopAccepting;
+        Runtime.getRuntime().addShutdownHook(new Thread(Handoff::drain, "drain"));
+
+        if (path == null)
+            return;
+
+        if (Cluster.isEnabled()) {
+            System.err.println("Handoff is not supported in a cluster, only draining on exit");
+            return;
+        }
+
+        try {
+            Handoff handoff = new Handoff(Paths.get(path));
+            /* Not a daemon: it outlives the acceptor while the connections drain */
+            new Thread(handoff, "handoff").start();
+            System.out.println("Handing over on " + path);
+        } catch (IOException ie) {
+            System.err.println("Error opening handoff socket " + path + ": " + ie);
+        }
+    }
+
+    @Override
+    public void run() {
+        try (SocketChannel successor = server.accept()) {
+            server.close();
+            Files.deleteIfExists(path);
+            System.out.println("Handing over to a new server");
+
+            stopAccepting.run();
+            Journal.stop();
+            send(new DataOutputStream(Channels.newOutputStream(successor)));
+        } catch (IOException ie) {
+            System.err.println("Error handing over: " + ie);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        drain();
+        System.exit(0);
+    }
+
+    /* Room name, frame count, then each MESSAGE line as length and bytes; the journal has them otherwise */
+    private static void send(DataOutputStream out) throws IOException {
+        Map<String, List<ByteBuffer>> histories = Config.JOURNAL_DIR != null ? Map.of() : Room.histories();
+
+        out.writeInt(histories.size());
+        for (Map.Entry<String, List<ByteBuffer>> room : histories.entrySet()) {
+            out.writeUTF(room.getKey());
+            out.writeInt(room.getValue().size());
+            for (ByteBuffer frame : room.getValue()) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        out.flush();
+    }
+
+    private static int receive(DataInputStream in) throws IOException {
+        int rooms = in.readInt();
+
+        for (int r = 0; r < rooms; r++) {
+            String name = in.readUTF();
+            int count = in.readInt();
+            List<String> senders = new ArrayList<>(count);
+            List<String> messages = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+
+                /* MESSAGE <sender> <text>\n; binary ids are per process, so the frames are built again */
+                String line = new String(bytes, 0, bytes.length - 1, ChatServer.charset);
+                int from = line.indexOf(' ') + 1;
+                int to = line.indexOf(' ', from);
+                senders.add(line.substring(from, to));
+                messages.add(line.substring(to + 1));
+            }
+
+            Room.restoreHistory(name, senders, messages);
+        }
+
+        return rooms;
+    }
+
+    /**
+     * Stops accepting and disconnects everyone, saying BYE first. Runs once;
+     * later calls return at once.
+     */
+    public static void drain() {
+        if (!draining.compareAndSet(false, true))
+            return;
+
+        stopAccepting.run();
+
+        long start = System.nanoTime();
+        List<User> users = new ArrayList<>(User.getAll());
+        drain(users, Config.DRAIN_MILLIS * 1_000_000L);
+
+        /* Whoever was still being accepted */
+        List<User> late = new ArrayList<>(User.getAll());
+        late.removeAll(new HashSet<>(users));
+        drain(late, 0);
+
+        Log.flush();
+        System.out.printf("Drained %d connections in %d ms%n", users.size() + late.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /*
+     * Says BYE to each user in turn, evenly over the time given, closing each
+     * once its BYE is written. BYE seals the user's queue, so broadcasts to a
+     * room it is still in can't keep it from flushing, and its loop takes it
+     * out of the room so they stop being encoded for it at all.
+     */
+    private static void drain(List<User> users, long nanos) {
+        List<User> leaving = new ArrayList<>();
+        long start = System.nanoTime();
+        long giveUp = start + nanos + BYE_GRACE_NANOS;
+        int next = 0;
+
+        while (next < users.size() || !leaving.isEmpty()) {
+            long now = System.nanoTime();
+
+            while (next < users.size() && now - start >= nanos * next / users.size()) {
+                User user = users.get(next++);
+                if (!user.getChannel().isOpen())
+                    continue;
+
+                try {
+                    MessagingUtils.sendBye(user);
+                    leaving.add(user);
+                    user.getEventLoop().execute(() -> leaveRoom(user));
+                } catch (IOException ie) {
+                    user.getEventLoop().requestDisconnect(user);
+                }
+            }
+
+            for (Iterator<User> it = leaving.iterator(); it.hasNext();) {
+                User user = it.next();
+                if (user.isFlushed() || now - giveUp >= 0) {
+                    user.getEventLoop().requestDisconnect(user);
+                    Metrics.drainedConnections.increment();
+                    it.remove();
+                }
+            }
+
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    /* As LEAVE would, so that a command still on its way finds it outside */
+    private static void leaveRoom(User user) {
+        if (!user.isInRoom())
+            return;
+
+        try {
+            user.leaveRoom();
+            user.setState(Protocol.State.OUTSIDE);
+        } catch (IOException ie) {
+            user.getEventLoop().requestDisconnect(user);
+        }
+    }
+}
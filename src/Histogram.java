@@ -0,0 +1,171 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram in the style of HdrHistogram. Values below
+ * 128 get their own bucket; above that every power of two is split into 64
+ * linear buckets, which keeps the error under 1.6% over the whole long range
+ * in about 30 KB. Any thread may record at any time.
+ *
+ * Event loops all record into the same histograms on every wake-up, so the
+ * buckets and the max are striped by thread, a stripe created on first use,
+ * and count and sum are LongAdders; readers merge the stripes.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT >> 1;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+    /* A power of two, twice the cores so threads with ids next to each other rarely share one */
+    private static final int STRIPES = Math.min(64,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+
+    /* Buckets and max of the threads mapped to each stripe */
+    private static final class Stripe {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+    }
+
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value to record
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        Stripe stripe = stripe();
+        stripe.counts.incrementAndGet(indexOf(value));
+        if (value > stripe.max.get())
+            stripe.max.accumulateAndGet(value, Math::max);
+        count.increment();
+        sum.add(value);
+    }
+
+    private Stripe stripe() {
+        int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe != null)
+            return stripe;
+
+        stripes.compareAndSet(index, null, new Stripe());
+        return stripes.get(index);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >>> shift) - HALF_COUNT);
+    }
+
+    /* Highest value that lands in the same bucket */
+    private static long highestValueAt(int index) {
+        if (index < SUB_COUNT)
+            return index;
+
+        int k = index - SUB_COUNT;
+        int shift = k / HALF_COUNT + 1;
+        long lowest = (long) (HALF_COUNT + k % HALF_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Gets the value below which the given percentage of samples fall
+     *
+     * @param percentile from 0 to 100
+     * @return the value, 0 if nothing was recorded
+     */
+    public long valueAtPercentile(double percentile) {
+        return valuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Gets the values below which each of the given percentages of samples
+     * fall, in one pass over the stripes
+     *
+     * @param percentiles from 0 to 100, in ascending order
+     * @return the values, 0 if nothing was recorded
+     */
+    public long[] valuesAtPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+
+        /* Counted from the buckets themselves, which a concurrent record may not have reached yet */
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null)
+                for (int i = 0; i < BUCKETS; i++)
+                    total += stripe.counts.get(i);
+        }
+        if (total == 0)
+            return values;
+
+        long max = getMax();
+        int next = 0;
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS && next < percentiles.length; i++) {
+            for (int s = 0; s < STRIPES; s++) {
+                Stripe stripe = stripes.get(s);
+                if (stripe != null)
+                    seen += stripe.counts.get(i);
+            }
+
+            while (next < percentiles.length && seen >= rank(percentiles[next], total))
+                values[next++] = Math.min(highestValueAt(i), max);
+        }
+
+        while (next < percentiles.length)
+            values[next++] = max;
+        return values;
+    }
+
+    private static long rank(double percentile, long total) {
+        return Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null)
+                max = Math.max(max, stripe.max.get());
+        }
+        return max;
+    }
+
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * Clears every sample. Samples recorded while this runs may be lost.
+     */
+    public void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe == null)
+                continue;
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.counts.set(i, 0);
+            stripe.max.set(0);
+        }
+        count.reset();
+        sum.reset();
+    }
+}
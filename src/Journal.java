@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Optional append-only journal of room and private messages, in segmented
+ * memory-mapped files. Event loops only offer records to a bounded queue and
+ * never wait on it: if the journal falls behind, records are dropped and
+ * counted. A single journal thread appends them to the mapped segment and
+ * forces it to disk once per group-commit interval, rolls to a new segment
+ * when one fills up, and deletes the oldest segments past the retention
+ * limits.
+ */
+public class Journal implements Runnable {
+    static final String SEGMENT_SUFFIX = ".log";
+
+    /* Records taken off the queue per pass */
+    private static final int DRAIN_BATCH = 1024;
+
+    /* Queued by stop() behind the last records; the journal thread commits and ends when it gets there */
+    private static final JournalRecord STOP = new JournalRecord(0, null, null, null, null);
+
+    /* Null while the journal is disabled */
+    private static volatile Journal instance;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long commitNanos;
+    private final BlockingQueue<JournalRecord> queue = new ArrayBlockingQueue<>(Config.JOURNAL_QUEUE);
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer segment;
+    private long segmentBase;
+
+    /* Set when records were written since the last force */
+    private boolean dirty = false;
+    private long nextCommit;
+
+    /* Counted down once the journal thread has committed its last record */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private Journal(Path dir, int segmentBytes, long commitNanos) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.commitNanos = commitNanos;
+    }
+
+    /**
+     * Recovers the room histories from the journal and starts appending to it
+     *
+     * @param dir journal directory, null to leave the journal disabled
+     */
+    public static void start(String dir) {
+        if (dir == null)
+            return;
+
+        try {
+            Journal journal = new Journal(Paths.get(dir), Config.JOURNAL_SEGMENT_BYTES,
+                    TimeUnit.MILLISECONDS.toNanos(Config.JOURNAL_COMMIT_MILLIS));
+            Files.createDirectories(journal.dir);
+            journal.recover();
+            journal.open();
+
+            instance = journal;
+            Thread thread = new Thread(journal, "journal");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException ie) {
+            System.err.println("Error opening journal " + dir + ": " + ie);
+        }
+    }
+
+    /**
+     * Checks if messages are being journaled
+     *
+     * @return if the journal is running
+     */
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * Stops appending and waits until everything queued so far is on disk,
+     * so another process can recover from the journal. Later messages are
+     * not journaled.
+     */
+    public static void stop() throws InterruptedException {
+        Journal journal = instance;
+        if (journal == null)
+            return;
+
+        instance = null;
+        journal.queue.put(STOP);
+        journal.stopped.await();
+    }
+
+    /**
+     * Queues a message for the journal. Never blocks.
+     *
+     * @param type   MESSAGE or PRIVATE
+     * @param target the room, or the recipient of a private message
+     * @param sender nickname of the sender
+     * @param text   the message
+     */
+    public static void append(MessageType type, String target, String sender, String text) {
+        Journal journal = instance;
+        if (journal == null)
+            return;
+
+        if (!journal.queue.offer(new JournalRecord(System.currentTimeMillis(), type, target, sender, text)))
+            Metrics.journalDropped.increment();
+    }
+
+    /* Seeds every room history with its latest messages */
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        int depth = Config.HISTORY_DEPTH;
+        Map<String, ArrayDeque<JournalRecord>> latest = new HashMap<>();
+
+        long records = new JournalReader(dir).replay(record -> {
+            if (record.getType() != MessageType.MESSAGE || depth == 0)
+                return;
+
+            ArrayDeque<JournalRecord> room = latest.computeIfAbsent(record.getTarget(), name -> new ArrayDeque<>());
+            if (room.size() == depth)
+                room.poll();
+            room.add(record);
+        });
+
+        for (Map.Entry<String, ArrayDeque<JournalRecord>> room : latest.entrySet()) {
+            List<String> senders = new ArrayList<>(room.getValue().size());
+            List<String> messages = new ArrayList<>(room.getValue().size());
+            for (JournalRecord record : room.getValue()) {
+                senders.add(record.getSender());
+                messages.add(record.getText());
+            }
+            Room.restoreHistory(room.getKey(), senders, messages);
+        }
+
+        System.out.println("Recovered " + records + " journal records into " + latest.size() + " room histories in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /* Maps the newest segment and finds where its records end, or starts the first one */
+    private void open() throws IOException {
+        List<Path> segments = JournalReader.segments(dir);
+
+        if (segments.isEmpty()) {
+            map(0);
+            return;
+        }
+
+        Path last = segments.get(segments.size() - 1);
+        String name = last.getFileName().toString();
+        map(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        new JournalReader(dir).scan(segment, null);
+        reclaim();
+    }
+
+    private void map(long base) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            /* The mapping outlives the channel */
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+        }
+
+        segmentBase = base;
+    }
+
+    @Override
+    public void run() {
+        List<JournalRecord> batch = new ArrayList<>(DRAIN_BATCH);
+
+        while (true) {
+            try {
+                JournalRecord first = dirty ? queue.poll(Math.max(0, nextCommit - System.nanoTime()), TimeUnit.NANOSECONDS)
+                        : queue.take();
+
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, DRAIN_BATCH);
+                    for (JournalRecord record : batch) {
+                        if (record == STOP) {
+                            if (dirty)
+                                commit();
+                            stopped.countDown();
+                            return;
+                        }
+                        write(record);
+                    }
+                    batch.clear();
+                }
+
+                if (dirty && System.nanoTime() - nextCommit >= 0)
+                    commit();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException ie) {
+                System.err.println("Journal: " + ie);
+            }
+        }
+    }
+
+    private void write(JournalRecord record) throws IOException {
+        byte[] target = utf8(record.getTarget());
+        byte[] sender = utf8(record.getSender());
+        byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 2 + target.length + 2 + sender.length + 4 + text.length;
+
+        if (JournalReader.HEADER_BYTES + length > segmentBytes || target.length > 0xFFFF || sender.length > 0xFFFF) {
+            Metrics.journalDropped.increment();
+            return;
+        }
+
+        if (segment.remaining() < JournalReader.HEADER_BYTES + length)
+            roll();
+
+        int start = segment.position();
+        segment.position(start + JournalReader.HEADER_BYTES);
+        segment.put((byte) record.getType().ordinal()).putLong(record.getTimestamp());
+        segment.putShort((short) target.length).put(target);
+        segment.putShort((short) sender.length).put(sender);
+        segment.putInt(text.length).put(text);
+
+        ByteBuffer payload = segment.duplicate();
+        payload.limit(segment.position()).position(start + JournalReader.HEADER_BYTES);
+        crc.reset();
+        crc.update(payload);
+
+        /* The length goes last, so a reader never sees a record before its bytes */
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, length);
+
+        if (!dirty) {
+            dirty = true;
+            nextCommit = System.nanoTime() + commitNanos;
+        }
+        Metrics.journalRecords.increment();
+    }
+
+    /* Room and user names are almost always interned already */
+    private static byte[] utf8(String name) {
+        Name interned = NameIds.find(name);
+        return interned != null ? interned.utf8() : name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* Forces everything written since the last commit to disk */
+    private void commit() {
+        long start = System.nanoTime();
+        segment.force();
+        dirty = false;
+        Metrics.journalCommit.record(System.nanoTime() - start);
+    }
+
+    private void roll() throws IOException {
+        if (dirty)
+            commit();
+
+        map(segmentBase + segment.position());
+        reclaim();
+    }
+
+    /* Deletes the oldest segments, never the active one, past the size or age limit */
+    private void reclaim() throws IOException {
+        List<Path> segments = JournalReader.segments(dir);
+        long maxBytes = Config.JOURNAL_RETENTION_MEGABYTES * (1L << 20);
+        long maxAge = TimeUnit.HOURS.toMillis(Config.JOURNAL_RETENTION_HOURS);
+        long now = System.currentTimeMillis();
+
+        long total = 0;
+        for (Path segment : segments)
+            total += Files.size(segment);
+
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Path oldest = segments.get(i);
+            boolean tooBig = total > maxBytes;
+            boolean tooOld = maxAge > 0 && now - Files.getLastModifiedTime(oldest).toMillis() > maxAge;
+
+            if (!tooBig && !tooOld)
+                break;
+
+            total -= Files.size(oldest);
+            Files.delete(oldest);
+            Metrics.journalSegmentsDeleted.increment();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential reader of the journal segments, oldest first. Each segment is
+ * mapped and walked record by record; reading stops at the zero length that
+ * marks the end of written data, or at the first record whose checksum does
+ * not match, which is where a crash tore the last write.
+ *
+ * Record layout, big endian: int payload length, int CRC32 of the payload,
+ * then the payload: byte type, long epoch millis, short-prefixed target,
+ * short-prefixed sender, int-prefixed text, all UTF-8.
+ */
+public class JournalReader {
+    static final int HEADER_BYTES = 8;
+
+    private final Path dir;
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[256];
+
+    public JournalReader(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Lists the segment files in append order
+     *
+     * @param dir the journal directory
+     * @return the segments, empty if there are none
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        if (!Files.isDirectory(dir))
+            return segments;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(f -> f.getFileName().toString().endsWith(Journal.SEGMENT_SUFFIX)).forEach(segments::add);
+        }
+
+        /* Names are zero padded base offsets, so name order is append order */
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads every record in every segment
+     *
+     * @param consumer gets each record in order
+     * @return the number of records read
+     */
+    public long replay(Consumer<JournalRecord> consumer) throws IOException {
+        long records = 0;
+
+        for (Path segment : segments(dir)) {
+            try (FileChannel channel = FileChannel.open(segment)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                records += scan(buffer, consumer);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Walks the valid records of one segment, leaving the buffer positioned
+     * right after the last one
+     *
+     * @param segment  mapped segment, from position 0
+     * @param consumer gets each record, null to only find the end
+     * @return the number of valid records
+     */
+    long scan(ByteBuffer segment, Consumer<JournalRecord> consumer) {
+        long records = 0;
+
+        while (segment.remaining() >= HEADER_BYTES) {
+            int start = segment.position();
+            int length = segment.getInt(start);
+            int checksum = segment.getInt(start + 4);
+
+            if (length <= 0 || length > segment.remaining() - HEADER_BYTES)
+                break;
+
+            ByteBuffer payload = segment.duplicate();
+            payload.limit(start + HEADER_BYTES + length).position(start + HEADER_BYTES);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            if (consumer != null) {
+                payload.position(start + HEADER_BYTES);
+                consumer.accept(decode(payload));
+            }
+
+            segment.position(start + HEADER_BYTES + length);
+            records++;
+        }
+
+        return records;
+    }
+
+    private JournalRecord decode(ByteBuffer payload) {
+        MessageType type = MessageType.values()[payload.get()];
+        long timestamp = payload.getLong();
+        String target = string(payload, payload.getShort() & 0xFFFF);
+        String sender = string(payload, payload.getShort() & 0xFFFF);
+        String text = string(payload, payload.getInt());
+
+        return new JournalRecord(timestamp, type, target, sender, text);
+    }
+
+    private String string(ByteBuffer payload, int length) {
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+
+        payload.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * One journaled chat event: a room message or a private message.
+ */
+public class JournalRecord {
+    private final long timestamp;
+    private final MessageType type;
+    private final String target;
+    private final String sender;
+    private final String text;
+
+    /**
+     * @param timestamp when it was sent, in epoch milliseconds
+     * @param type      MESSAGE or PRIVATE
+     * @param target    the room, or the recipient of a private message
+     * @param sender    nickname of the sender
+     * @param text      the message
+     */
+    public JournalRecord(long timestamp, MessageType type, String target, String sender, String text) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.target = target;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
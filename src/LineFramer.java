@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+
+/**
+ * Splits a connection's inbound bytes into lines. Only bytes that arrived
+ * since the last call are scanned for '\n', and each complete line is decoded
+ * exactly once. A 0x0A byte can never be part of a multi-byte UTF-8 sequence,
+ * so a character split across two reads simply waits in the buffer.
+ *
+ * A connection whose first byte is BinaryCodec.MAGIC or MAGIC_COMPRESSED is
+ * split into length-prefixed binary frames instead.
+ *
+ * An idle connection holds no buffer at all: reads land in the reactor's
+ * shared scratch buffer, and a pooled buffer is only borrowed to keep a
+ * partial line until it completes.
+ */
+public class LineFramer {
+    private static final byte NEW_LINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    /* Pooled buffer holding a partial line, null when there is none */
+    private ByteBuffer pending = null;
+
+    /* Buffer being framed right now, either pending or the reactor scratch */
+    private ByteBuffer current = null;
+
+    /* Start of the line being assembled */
+    private int lineStart = 0;
+
+    /* Everything before this offset has already been scanned */
+    private int scanned = 0;
+
+    /* The first byte decides the protocol */
+    private boolean negotiated = false;
+    private boolean binary = false;
+    private boolean compressed = false;
+
+    /**
+     * Gets the buffer to read into, in write mode
+     *
+     * @param scratch the reactor's shared read buffer
+     * @return the pending buffer if there is a partial line, else the scratch
+     */
+    public ByteBuffer buffer(ByteBuffer scratch) {
+        if (pending != null) {
+            current = pending;
+        } else {
+            scratch.clear();
+            current = scratch;
+            lineStart = 0;
+            scanned = 0;
+        }
+
+        return current;
+    }
+
+    /**
+     * Gets the next complete line, without its terminator
+     *
+     * @param decoder to decode the line with
+     * @return the line, or null if there is no complete line left
+     */
+    public String nextLine(CharsetDecoder decoder) throws CharacterCodingException {
+        int end = current.position();
+
+        for (int i = scanned; i < end; i++) {
+            if (current.get(i) != NEW_LINE)
+                continue;
+
+            int lineEnd = i;
+            if (lineEnd > lineStart && current.get(lineEnd - 1) == CARRIAGE_RETURN)
+                lineEnd--;
+
+            String line = decode(decoder, lineStart, lineEnd);
+            lineStart = i + 1;
+            scanned = i + 1;
+            return line;
+        }
+
+        scanned = end;
+        return null;
+    }
+
+    /**
+     * Picks the protocol from the first byte read, consuming it if it asks
+     * for binary frames. Does nothing once decided.
+     *
+     * @return true if the connection just turned binary
+     */
+    public boolean negotiate() {
+        if (negotiated || current.position() == lineStart)
+            return false;
+
+        negotiated = true;
+        byte first = current.get(lineStart);
+        if (first != BinaryCodec.MAGIC && first != BinaryCodec.MAGIC_COMPRESSED)
+            return false;
+
+        binary = true;
+        compressed = first == BinaryCodec.MAGIC_COMPRESSED;
+        lineStart++;
+        scanned = lineStart;
+        return true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /* Binary, with compressed frames from the server */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Gets the next complete binary frame, without its length
+     *
+     * @return a view of the frame, valid until the next compact, or null if
+     *         there is no complete frame left
+     */
+    public ByteBuffer nextFrame() {
+        int available = current.position() - lineStart;
+        if (available < 2)
+            return null;
+
+        int length = current.getShort(lineStart) & 0xFFFF;
+        if (available < 2 + length)
+            return null;
+
+        ByteBuffer frame = current.duplicate();
+        frame.limit(lineStart + 2 + length).position(lineStart + 2);
+        lineStart += 2 + length;
+        scanned = lineStart;
+        return frame;
+    }
+
+    private String decode(CharsetDecoder decoder, int from, int to) throws CharacterCodingException {
+        ByteBuffer line = current.duplicate();
+        line.limit(to).position(from);
+        return decoder.decode(line).toString();
+    }
+
+    /**
+     * Drops the lines already handed out. A partial line is moved to the front
+     * of a pooled buffer, which goes back to the pool once no partial line is
+     * left.
+     *
+     * @param pool to borrow from and release to
+     */
+    public void compact(BufferPool pool) {
+        int remaining = current.position() - lineStart;
+
+        if (remaining == 0) {
+            release(pool);
+            return;
+        }
+
+        if (pending == null) {
+            pending = pool.borrow();
+        } else if (lineStart == 0) {
+            return;
+        }
+
+        current.limit(current.position()).position(lineStart);
+        if (current == pending)
+            pending.compact();
+        else
+            pending.put(current);
+
+        current = pending;
+        scanned -= lineStart;
+        lineStart = 0;
+    }
+
+    /**
+     * Gives the pending buffer back, discarding any partial line
+     *
+     * @param pool it was borrowed from
+     */
+    public void release(BufferPool pool) {
+        if (pending != null)
+            pool.release(pending);
+
+        pending = null;
+        current = null;
+        lineStart = 0;
+        scanned = 0;
+    }
+
+    /**
+     * Checks if unhandled input is kept between reads
+     *
+     * @return if there is a pending buffer
+     */
+    public boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * Checks if the partial line fills a whole buffer, i.e it can never
+     * complete
+     *
+     * @return if no more bytes fit
+     */
+    public boolean isFull() {
+        return pending != null && !pending.hasRemaining();
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Headless load generator. Opens many connections from one selector thread,
+ * gives each a nickname and a room, then sends messages at a fixed total rate
+ * and times every MESSAGE that comes back, on every member of the room.
+ *
+ * Each message carries the time it was supposed to be sent, not the time it
+ * actually went out, so when the generator or the server falls behind the
+ * wait is counted in the latency (the wrk2 way of avoiding coordinated
+ * omission). The raw latency from the actual send is reported next to it.
+ *
+ * Usage: java LoadGenerator host port [port...], tuned with -Dload.*
+ * properties. With several ports, as for the nodes of a cluster, connections
+ * are spread over them in turn, so room members sit on different servers.
+ */
+public class LoadGenerator {
+    private static final int CONNECTIONS = Config.intProperty("load.connections", 1000);
+    private static final int ROOMS = Config.intProperty("load.rooms", 10);
+    /* uniform, or zipf to crowd most connections into a few rooms */
+    private static final String DISTRIBUTION = System.getProperty("load.distribution", "uniform");
+    /* Messages per second, over all connections */
+    private static final int RATE = Config.intProperty("load.rate", 1000);
+    private static final int MESSAGE_SIZE = Config.intProperty("load.messageSize", 64);
+    private static final int WARMUP_SECONDS = Config.intProperty("load.warmup", 5);
+    private static final int SECONDS = Config.intProperty("load.seconds", 30);
+    /* room to message the room, or priv to send each message privately to the next connection instead */
+    private static final boolean PRIVATE = "priv".equals(System.getProperty("load.mode", "room"));
+
+    private static final byte[] MESSAGE_PREFIX = (PRIVATE ? "PRIVATE " : "MESSAGE ").getBytes(ChatServer.charset);
+
+    private final Selector selector = Selector.open();
+    private final Connection[] connections = new Connection[CONNECTIONS];
+
+    private final Histogram corrected = new Histogram();
+    private final Histogram uncorrected = new Histogram();
+
+    private int ready = 0;
+    private long received = 0;
+    private long sent = 0;
+    private boolean recording = false;
+
+    private static class Connection {
+        final SocketChannel channel;
+        final String room;
+        final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        ByteBuffer out = ByteBuffer.allocate(0);
+        int okCount = 0;
+
+        Connection(SocketChannel channel, String room) {
+            this.channel = channel;
+            this.room = room;
+        }
+    }
+
+    private LoadGenerator() throws IOException {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.print("Usage: java LoadGenerator <host> <port> [port...]\n");
+            return;
+        }
+
+        InetSocketAddress[] servers = new InetSocketAddress[args.length - 1];
+        for (int i = 0; i < servers.length; i++)
+            servers[i] = new InetSocketAddress(args[0], Integer.parseInt(args[i + 1]));
+
+        new LoadGenerator().run(servers);
+    }
+
+    private void run(InetSocketAddress[] servers) throws IOException {
+        String[] rooms = assignRooms();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            SocketChannel channel = SocketChannel.open(servers[i % servers.length]);
+            channel.configureBlocking(false);
+            connections[i] = new Connection(channel, rooms[i]);
+            channel.register(selector, SelectionKey.OP_READ, connections[i]);
+            send(connections[i], "/nick lg" + i + "\n/join " + rooms[i] + "\n");
+        }
+
+        /* Wait for both OKs on every connection */
+        while (ready < CONNECTIONS) {
+            selector.select(1000);
+            pumpSelected();
+        }
+
+        System.out.printf("%d connections to %d servers in %d rooms (%s) ready in %d ms%n", CONNECTIONS,
+                servers.length, ROOMS, DISTRIBUTION, (System.nanoTime() - start) / 1_000_000);
+        System.out.printf("sending %d msg/s of %d chars for %ds warm-up + %ds%n", RATE, MESSAGE_SIZE, WARMUP_SECONDS,
+                SECONDS);
+
+        drive();
+    }
+
+    /* Main loop: send on schedule, read whatever arrives, report every second */
+    private void drive() throws IOException {
+        long interval = 1_000_000_000L / Math.max(1, RATE);
+        long start = System.nanoTime();
+        long end = start + (WARMUP_SECONDS + SECONDS) * 1_000_000_000L;
+        long recordFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+        long nextReport = start + 1_000_000_000L;
+        long next = start;
+        long index = 0;
+        long lastSent = 0, lastReceived = 0;
+        String padding = "x".repeat(Math.max(1, MESSAGE_SIZE));
+
+        while (true) {
+            long now = System.nanoTime();
+
+            if (!recording && now >= recordFrom) {
+                recording = true;
+                corrected.reset();
+                uncorrected.reset();
+            }
+
+            /* Send everything that is due, including what a stall held back */
+            while (next <= now && next < end) {
+                int from = (int) (index++ % CONNECTIONS);
+                /* Neighbours sit on different reactors, and with several ports on different nodes */
+                String to = PRIVATE ? "/priv lg" + (from + 1) % CONNECTIONS + " " : "";
+                send(connections[from], to + "t" + next + ":" + System.nanoTime() + " " + padding + "\n");
+                sent++;
+                next += interval;
+            }
+
+            if (now >= nextReport) {
+                System.out.printf("%s sent %d/s received %d/s p50 %.3f ms p99 %.3f ms%n",
+                        recording ? "run   " : "warmup", sent - lastSent, received - lastReceived,
+                        corrected.valueAtPercentile(50) / 1e6, corrected.valueAtPercentile(99) / 1e6);
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += 1_000_000_000L;
+            }
+
+            if (now >= end + 1_000_000_000L)
+                break;
+
+            long waitMillis = Math.min(next, nextReport) - now;
+            if (waitMillis >= 1_000_000L)
+                selector.select(waitMillis / 1_000_000L);
+            else
+                selector.selectNow();
+
+            pumpSelected();
+        }
+
+        report();
+    }
+
+    private void pumpSelected() throws IOException {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            pump((Connection) key.attachment());
+        }
+    }
+
+    private void report() {
+        System.out.println();
+        System.out.printf("%d messages sent, %d deliveries timed over %ds (%.0f deliveries/s)%n", sent,
+                corrected.getCount(), SECONDS, corrected.getCount() / (double) SECONDS);
+        print("corrected  ", corrected);
+        print("uncorrected", uncorrected);
+    }
+
+    private static void print(String name, Histogram h) {
+        System.out.printf("%s p50 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms  mean %.3f ms%n", name,
+                h.valueAtPercentile(50) / 1e6, h.valueAtPercentile(99) / 1e6, h.valueAtPercentile(99.9) / 1e6,
+                h.getMax() / 1e6, h.getMean() / 1e6);
+    }
+
+    private void send(Connection c, String line) throws IOException {
+        ByteBuffer bytes = ChatServer.charset.encode(line);
+
+        if (c.out.hasRemaining()) {
+            ByteBuffer merged = ByteBuffer.allocate(c.out.remaining() + bytes.remaining());
+            merged.put(c.out).put(bytes).flip();
+            bytes = merged;
+        }
+
+        c.channel.write(bytes);
+        c.out = bytes;
+
+        SelectionKey key = c.channel.keyFor(selector);
+        key.interestOps(bytes.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /* Flushes pending output and handles every complete line read */
+    private void pump(Connection c) throws IOException {
+        if (c.out.hasRemaining())
+            send(c, "");
+
+        if (c.channel.read(c.in) < 0)
+            throw new IOException("server closed " + c.channel);
+
+        long now = System.nanoTime();
+        int end = c.in.position();
+        int lineStart = 0;
+
+        for (int i = 0; i < end; i++) {
+            if (c.in.get(i) != '\n')
+                continue;
+
+            onLine(c, lineStart, i, now);
+            lineStart = i + 1;
+        }
+
+        c.in.limit(end).position(lineStart);
+        c.in.compact();
+    }
+
+    private void onLine(Connection c, int from, int to, long now) {
+        ByteBuffer in = c.in;
+
+        if (to - from == 2 && in.get(from) == 'O' && in.get(from + 1) == 'K') {
+            if (++c.okCount == 2)
+                ready++;
+            return;
+        }
+
+        if (!startsWith(in, from, to, MESSAGE_PREFIX))
+            return;
+
+        /* MESSAGE or PRIVATE <nick> t<intended>:<actual> ... */
+        int i = from + MESSAGE_PREFIX.length;
+        while (i < to && in.get(i) != ' ')
+            i++;
+        if (i + 2 >= to || in.get(i + 1) != 't')
+            return;
+
+        long intended = 0, actual = 0;
+        for (i += 2; i < to && in.get(i) != ':'; i++)
+            intended = intended * 10 + (in.get(i) - '0');
+        for (i++; i < to && in.get(i) != ' '; i++)
+            actual = actual * 10 + (in.get(i) - '0');
+
+        received++;
+        if (recording) {
+            corrected.record(now - intended);
+            uncorrected.record(now - actual);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer in, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; i++)
+            if (in.get(from + i) != prefix[i])
+                return false;
+
+        return true;
+    }
+
+    /* Picks a room for every connection */
+    private static String[] assignRooms() {
+        String[] rooms = new String[CONNECTIONS];
+        double[] cumulative = new double[ROOMS];
+        double total = 0;
+
+        for (int r = 0; r < ROOMS; r++) {
+            total += DISTRIBUTION.equals("zipf") ? 1.0 / (r + 1) : 1.0;
+            cumulative[r] = total;
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            double pick = random.nextDouble() * total;
+            int r = 0;
+            while (r < ROOMS - 1 && cumulative[r] < pick)
+                r++;
+            rooms[i] = "room" + r;
+        }
+
+        return rooms;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous event log. Event loops put an event in a bounded lock-free
+ * ring and move on; a single log thread formats the events and writes them
+ * out, a batch per write. Nothing is formatted on the caller's thread, and
+ * when the ring is full the event is dropped and counted, so logging never
+ * blocks an event loop.
+ *
+ * Each slot has a sequence number, as in a bounded multi-producer queue:
+ * producers claim a slot with one CAS on the tail and publish it by setting
+ * its sequence, the log thread frees it again by advancing the sequence one
+ * lap.
+ */
+public class Log implements Runnable {
+    /* Events formatted into one write */
+    private static final int DRAIN_BATCH = 1024;
+
+    /* How long the log thread sleeps when there is nothing to write */
+    private static final long IDLE_NANOS = 10_000_000L;
+
+    private static final Log instance = new Log(Config.LOG_QUEUE);
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final LogEvent[] events;
+    private final long[] times;
+    private final Object[] subjects;
+    private final Object[] details;
+
+    /* Next slot to claim, shared by the producers */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Next slot to read; only the log thread moves it, others watch it in flush() */
+    private volatile long head = 0;
+
+    private final StringBuilder out = new StringBuilder(8192);
+    private final StringBuilder err = new StringBuilder(1024);
+
+    private Log(int capacity) {
+        /* A power of two, so a sequence maps to its slot with a mask */
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        events = new LogEvent[size];
+        times = new long[size];
+        subjects = new Object[size];
+        details = new Object[size];
+
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+
+        Thread thread = new Thread(this, "log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Logs an event. Never blocks.
+     *
+     * @param event   what happened
+     * @param subject what it happened to, formatted with toString() later
+     */
+    public static void event(LogEvent event, Object subject) {
+        instance.offer(event, subject, null);
+    }
+
+    /**
+     * Logs an event with a detail, such as a reason or an exception. Never
+     * blocks.
+     *
+     * @param event   what happened
+     * @param subject what it happened to, formatted with toString() later
+     * @param detail  more about it, formatted with toString() later
+     */
+    public static void event(LogEvent event, Object subject, Object detail) {
+        instance.offer(event, subject, detail);
+    }
+
+    /**
+     * The remote address of a connection, which stays the same after it
+     * closes; log this rather than the channel, whose state may have changed
+     * by the time the event is written.
+     *
+     * @param sc connection
+     * @return its peer, null if it never connected
+     */
+    public static SocketAddress peer(SocketChannel sc) {
+        return sc.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Waits, up to a second, until the events logged so far are written, for
+     * messages printed directly to follow them
+     */
+    public static void flush() {
+        long target = instance.tail.get();
+        long giveUp = System.nanoTime() + 1_000_000_000L;
+
+        while (instance.head < target && System.nanoTime() - giveUp < 0)
+            LockSupport.parkNanos(1_000_000L);
+    }
+
+    private void offer(LogEvent event, Object subject, Object detail) {
+        long time = System.currentTimeMillis();
+
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+
+            if (sequence < position) {
+                /* The log thread hasn't freed this slot yet, a lap ago: the ring is full */
+                Metrics.logDropped.increment();
+                return;
+            }
+
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                events[slot] = event;
+                times[slot] = time;
+                subjects[slot] = subject;
+                details[slot] = detail;
+                sequences.setRelease(slot, position + 1);
+                return;
+            }
+
+            /* Another producer took the slot first, try the next */
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /* Formats up to a batch of published events and writes them out */
+    private int drain() {
+        long position = head;
+        int count = 0;
+
+        while (count < DRAIN_BATCH) {
+            int slot = (int) position & mask;
+            if (sequences.getAcquire(slot) != position + 1)
+                break;
+
+            LogEvent event = events[slot];
+            try {
+                format(event.error ? err : out, event, times[slot], subjects[slot], details[slot]);
+            } catch (RuntimeException ex) {
+                /* A subject that can't print itself must not stop the log */
+                err.append(Instant.ofEpochMilli(times[slot])).append(" ERROR log ").append(ex).append('\n');
+            }
+
+            subjects[slot] = null;
+            details[slot] = null;
+            sequences.setRelease(slot, position + mask + 1);
+            position++;
+            count++;
+        }
+
+        if (count > 0) {
+            write(System.out, out);
+            write(System.err, err);
+            Metrics.logEvents.add(count);
+            head = position;
+        }
+        return count;
+    }
+
+    private static void format(StringBuilder sb, LogEvent event, long time, Object subject, Object detail) {
+        sb.append(Instant.ofEpochMilli(time)).append(' ').append(event.name()).append(' ').append(subject);
+        if (detail != null)
+            sb.append(' ').append(detail);
+        sb.append('\n');
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.length() == 0)
+            return;
+
+        stream.print(sb);
+        stream.flush();
+        sb.setLength(0);
+    }
+}
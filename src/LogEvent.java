@@ -0,0 +1,26 @@
+/**
+ * Kinds of event the server logs, each on one line of its own.
+ */
+public enum LogEvent {
+    /* A connection was accepted */
+    CONNECT(false),
+    /* A connection was turned away by admission control */
+    REJECT(false),
+    /* A connection was closed, by the peer or by the server */
+    CLOSE(false),
+    /* A connection was cut off by one of its timeouts */
+    TIMEOUT(false),
+    /* A connection sent input that could not be decoded */
+    PROTOCOL_ERROR(false),
+    /* A connection was cut off for not reading its messages */
+    SLOW_CONSUMER(false),
+    /* Something failed on the server side */
+    ERROR(true);
+
+    /* Goes to standard error rather than standard output */
+    final boolean error;
+
+    LogEvent(boolean error) {
+        this.error = error;
+    }
+}
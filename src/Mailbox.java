@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames one reactor hands to users owned by another, in a bounded
+ * single-producer single-consumer ring. Each pair of reactors has its own
+ * mailbox, so the sending loop only ever writes the tail and the receiving
+ * loop only the head; neither takes a lock or a CAS.
+ *
+ * When the ring is full the producer keeps the frames in an overflow list of
+ * its own and moves them over as the consumer makes room, so frames arrive
+ * in the order they were sent. The overflow holds as many frames as the ring;
+ * past that the slow consumer policy applies as it would to a full outbound
+ * queue: the user is cut off, or the oldest frame left over is dropped.
+ */
+public class Mailbox {
+    private final int mask;
+    private final User[] users;
+    private final ByteBuffer[] frames;
+
+    /* Next slot to fill, written by the producer only */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Next slot to take, written by the consumer only */
+    private final AtomicLong head = new AtomicLong();
+
+    /* Producer side: the last head it saw, and what didn't fit yet */
+    private long headCache = 0;
+    private final ArrayDeque<User> overflowUsers = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> overflowFrames = new ArrayDeque<>();
+
+    public Mailbox(int capacity) {
+        /* A power of two, so a position maps to its slot with a mask */
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        users = new User[size];
+        frames = new ByteBuffer[size];
+    }
+
+    /**
+     * Posts a frame for a user of the consumer. Producer only.
+     *
+     * @param user  to send to
+     * @param frame to send, owned by the mailbox from now on
+     */
+    public void post(User user, ByteBuffer frame) {
+        if (overflowUsers.isEmpty() && offer(user, frame))
+            return;
+
+        Metrics.mailboxOverflow.increment();
+        if (overflowUsers.size() > mask) {
+            if (Config.SLOW_CONSUMER_POLICY == SlowConsumerPolicy.DISCONNECT) {
+                user.cutOff();
+                return;
+            }
+
+            overflowUsers.poll();
+            overflowFrames.poll();
+            Metrics.droppedFrames.increment();
+        }
+
+        overflowUsers.add(user);
+        overflowFrames.add(frame);
+    }
+
+    /**
+     * Moves overflowed frames into the ring as far as it has room. Producer
+     * only.
+     *
+     * @return true once nothing is left over
+     */
+    public boolean moveOverflow() {
+        while (!overflowUsers.isEmpty()) {
+            if (!offer(overflowUsers.peek(), overflowFrames.peek()))
+                return false;
+            overflowUsers.poll();
+            overflowFrames.poll();
+        }
+        return true;
+    }
+
+    private boolean offer(User user, ByteBuffer frame) {
+        long position = tail.get();
+
+        if (position - headCache > mask) {
+            headCache = head.getAcquire();
+            if (position - headCache > mask)
+                return false;
+        }
+
+        int slot = (int) position & mask;
+        users[slot] = user;
+        frames[slot] = frame;
+        tail.setRelease(position + 1);
+        return true;
+    }
+
+    /**
+     * Sends every frame posted so far to its user. Consumer only, on the loop
+     * that owns the users.
+     *
+     * @return frames taken
+     */
+    public int drain() {
+        long position = head.get();
+        long end = tail.getAcquire();
+
+        for (long p = position; p < end; p++) {
+            int slot = (int) p & mask;
+            User user = users[slot];
+            ByteBuffer frame = frames[slot];
+            users[slot] = null;
+            frames[slot] = null;
+
+            if (user.getChannel().isOpen())
+                user.send(frame);
+        }
+
+        if (end != position)
+            head.setRelease(end);
+        return (int) (end - position);
+    }
+}
@@ -1,3 +1,7 @@
 public enum MessageType {
-    ERROR, OK, JOINED, MESSAGE, PRIVATE, NEWNICK, LEFT, BYE
+    ERROR, OK, JOINED, MESSAGE, PRIVATE, NEWNICK, LEFT, BYE,
+    /* Binary protocol only: the name behind an id, in answer to a WHOIS */
+    NAME,
+    /* Binary protocol only: room history replayed to a compressing client, as a run of whole frames */
+    HISTORY
 }
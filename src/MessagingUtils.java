@@ -1,13 +1,24 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 public class MessagingUtils {
 
+    /* Every keyword in ASCII, by MessageType ordinal */
+    private static final byte[][] KEYWORDS = new byte[MessageType.values().length][];
+
+    static {
+        for (MessageType type : MessageType.values())
+            KEYWORDS[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+    }
+
     private MessagingUtils() {
     }
 
+    /* BYE is the last frame the user gets, even with messages for it still on their way */
     public static void sendBye(User user) throws IOException {
-        sendMessage(user.getChannel(), MessageType.BYE);
+        user.sendLast(frame(user, MessageType.BYE));
     }
 
     public static void sendOK(SocketChannel channel) throws IOException {
@@ -15,7 +26,7 @@ public class MessagingUtils {
     }
 
     public static void sendOK(User user) throws IOException {
-        sendMessage(user.getChannel(), MessageType.OK);
+        sendMessage(user, MessageType.OK);
     }
 
     public static void sendError(SocketChannel channel) throws IOException {
@@ -23,48 +34,133 @@ public class MessagingUtils {
     }
 
     public static void sendError(User user) throws IOException {
-        sendMessage(user.getChannel(), MessageType.ERROR);
+        sendMessage(user, MessageType.ERROR);
     }
 
-    public static void sendMessage(User user, MessageType type, String... data) throws IOException {
-        sendMessage(user.getChannel(), type, data);
+    public static void sendMessage(User user, MessageType type, Name... names) throws IOException {
+        user.send(frame(user, type, names));
     }
 
-    private static void sendMessage(SocketChannel channel, MessageType type, String... data) throws IOException {
-        String message = null;
+    public static void sendMessage(User user, MessageType type, Name sender, String text) throws IOException {
+        user.send(frame(user, type, sender, text));
+    }
 
+    /**
+     * Encodes a message the way the user reads them: text, binary or
+     * compressed
+     *
+     * @param user  who will get it
+     * @param type  of the message
+     * @param names its arguments
+     * @return the frame, for this user only
+     */
+    public static ByteBuffer frame(User user, MessageType type, Name... names) {
+        if (!user.isBinary())
+            return encode(type, names);
+        else if (user.isCompressed())
+            return FrameCompressor.compress(BinaryCodec.encode(type, names));
+        else
+            return BinaryCodec.encode(type, names);
+    }
+
+    /**
+     * Encodes a MESSAGE or PRIVATE the way the user reads them
+     *
+     * @param user   who will get it
+     * @param type   of the message
+     * @param sender nickname of the sender
+     * @param text   the message
+     * @return the frame, for this user only
+     */
+    public static ByteBuffer frame(User user, MessageType type, Name sender, String text) {
+        if (!user.isBinary())
+            return encode(type, sender, text);
+        else if (user.isCompressed())
+            return FrameCompressor.compress(BinaryCodec.encode(type, sender, text));
+        else
+            return BinaryCodec.encode(type, sender, text);
+    }
+
+    /**
+     * Sends an already encoded frame. The frame is shared, every recipient
+     * gets its own view of the same bytes.
+     *
+     * @param user  to send to
+     * @param frame built by {@link #encode}
+     */
+    public static void sendFrame(User user, ByteBuffer frame) {
+        user.send(frame.duplicate());
+    }
+
+    private static void sendMessage(SocketChannel channel, MessageType type) throws IOException {
+        channel.write(encode(type));
+    }
+
+    /**
+     * Builds and encodes a frame once, so it can be fanned out to many users.
+     * Names are copied from their interned UTF-8 bytes.
+     *
+     * @param type  of the message
+     * @param names its arguments: the name for JOINED and LEFT, the old and
+     *              the new for NEWNICK, none otherwise
+     * @return a read-only buffer holding the encoded line
+     */
+    public static ByteBuffer encode(MessageType type, Name... names) {
         switch (type) {
-            case ERROR:
-                message = "ERROR";
-                break;
-            case OK:
-                message = "OK";
-                break;
             case JOINED:
-                message = "JOINED " + data[0];
-                break;
-            case MESSAGE:
-                message = "MESSAGE " + data[0] + " " + data[1];
-                break;
-            case PRIVATE:
-                message = "PRIVATE " + data[0] + " " + data[1];
-                break;
-            case NEWNICK:
-                message = "NEWNICK " + data[0] + " " + data[1];
-                break;
-            case LEFT:
-                message = "LEFT " + data[0];
-                break;
-            case BYE:
-                message = "BYE";
-                break;
+            case LEFT: {
+                byte[] name = names[0].utf8();
+                return line(type, name.length).put(name).put((byte) '\n').flip().asReadOnlyBuffer();
+            }
+            case NEWNICK: {
+                byte[] oldName = names[0].utf8();
+                byte[] newName = names[1].utf8();
+                return line(type, oldName.length + 1 + newName.length).put(oldName).put((byte) ' ').put(newName)
+                        .put((byte) '\n').flip().asReadOnlyBuffer();
+            }
+            default:
+                return line(type, -1).put((byte) '\n').flip().asReadOnlyBuffer();
         }
+    }
 
-        message += '\n';
+    /**
+     * Builds and encodes a MESSAGE or PRIVATE line once. Only the text is
+     * encoded, the sender is copied from its interned UTF-8 bytes.
+     *
+     * @param type   of the message
+     * @param sender nickname of the sender
+     * @param text   the message
+     * @return a read-only buffer holding the encoded line
+     */
+    public static ByteBuffer encode(MessageType type, Name sender, String text) {
+        byte[] name = sender.utf8();
+        byte[] bytes = text.getBytes(ChatServer.charset);
+        return line(type, name.length + 1 + bytes.length).put(name).put((byte) ' ').put(bytes).put((byte) '\n')
+                .flip().asReadOnlyBuffer();
+    }
 
-        if (message != null) {
-            channel.write(ChatServer.charset.encode(message));
-        }
+    /**
+     * Gets the keyword a text line of the type starts with
+     *
+     * @param type of the message
+     * @return its bytes, shared and not to be modified
+     */
+    static byte[] keyword(MessageType type) {
+        return KEYWORDS[type.ordinal()];
+    }
+
+    /**
+     * Starts a text line with its keyword
+     *
+     * @param type of the message
+     * @param body bytes that follow the keyword and a space, -1 for a line
+     *             with no arguments
+     * @return a buffer with room left for the body and the new line
+     */
+    static ByteBuffer line(MessageType type, int body) {
+        byte[] keyword = keyword(type);
+        ByteBuffer line = ByteBuffer.allocate(keyword.length + 1 + body + 1).put(keyword);
+        return body < 0 ? line : line.put((byte) ' ');
     }
 
 }
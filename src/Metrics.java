@@ -0,0 +1,401 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and latency histograms. Counters are LongAdders and
+ * histograms are lock-free, so any reactor can update them without
+ * contending with the others. Read through JMX or the admin port.
+ */
+public class Metrics implements MetricsMBean {
+    public static final Metrics instance = new Metrics();
+
+    public static final LongAdder connectionsAccepted = new LongAdder();
+    public static final LongAdder connectionsClosed = new LongAdder();
+    /* Turned away on accept by the connection limit or the accept rate */
+    public static final LongAdder connectionsRejected = new LongAdder();
+    public static final LongAdder bytesRead = new LongAdder();
+    public static final LongAdder bytesWritten = new LongAdder();
+    public static final LongAdder linesFramed = new LongAdder();
+    public static final LongAdder partialWrites = new LongAdder();
+    /* Write calls issued and frames they completed; their ratio is the batching gain */
+    public static final LongAdder writeCalls = new LongAdder();
+    public static final LongAdder framesWritten = new LongAdder();
+    public static final LongAdder droppedFrames = new LongAdder();
+    public static final LongAdder slowConsumerDisconnects = new LongAdder();
+    /* Commands over a user's or a room's rate limit, and connections closed for it */
+    public static final LongAdder throttledUsers = new LongAdder();
+    public static final LongAdder throttledRooms = new LongAdder();
+    public static final LongAdder throttleDisconnects = new LongAdder();
+    /* Connections told BYE and closed by a drain */
+    public static final LongAdder drainedConnections = new LongAdder();
+    /* Room history frames replayed on join, and evicted by room depth or by the shared budget */
+    public static final LongAdder historyReplayed = new LongAdder();
+    public static final LongAdder historyDepthEvictions = new LongAdder();
+    public static final LongAdder historyMemoryEvictions = new LongAdder();
+    /* Records journaled, dropped because the journal fell behind, and segments reclaimed */
+    public static final LongAdder journalRecords = new LongAdder();
+    public static final LongAdder journalDropped = new LongAdder();
+    public static final LongAdder journalSegmentsDeleted = new LongAdder();
+    /* Frames compressed, their bytes before and after, and frames that would not shrink */
+    public static final LongAdder compressedFrames = new LongAdder();
+    public static final LongAdder compressBytesIn = new LongAdder();
+    public static final LongAdder compressBytesOut = new LongAdder();
+    public static final LongAdder compressIncompressible = new LongAdder();
+    /* Cluster bus messages sent, received, and dropped because a peer was down or behind */
+    public static final LongAdder clusterSent = new LongAdder();
+    public static final LongAdder clusterReceived = new LongAdder();
+    public static final LongAdder clusterDropped = new LongAdder();
+
+    /* Private messages passed from one reactor to another, and those that found the mailbox full */
+    public static final LongAdder mailboxFrames = new LongAdder();
+    public static final LongAdder mailboxOverflow = new LongAdder();
+    /* Log events written, and dropped because the log thread fell behind */
+    public static final LongAdder logEvents = new LongAdder();
+    public static final LongAdder logDropped = new LongAdder();
+
+    /* Connections timed out, by ConnectionTimeouts.Reason ordinal */
+    private static final LongAdder[] timeouts = new LongAdder[ConnectionTimeouts.Reason.values().length];
+
+    /* Commands received, by CommandParser.Command ordinal */
+    private static final LongAdder[] commands = new LongAdder[CommandParser.Command.values().length];
+
+    /* Time a reactor spends handling one select() wake-up, in nanoseconds */
+    public static final Histogram selectLoop = new Histogram();
+
+    /* Members a room broadcast went to, and how long it took in nanoseconds */
+    public static final Histogram broadcastFanout = new Histogram();
+    public static final Histogram broadcastDuration = new Histogram();
+
+    /* Time to force a group commit of the journal to disk, in nanoseconds */
+    public static final Histogram journalCommit = new Histogram();
+
+    /* Time to deflate one frame, in nanoseconds */
+    public static final Histogram compressDuration = new Histogram();
+
+    /* Time a forwarded message took from its node to this one, in nanoseconds, by wall clock */
+    public static final Histogram clusterHop = new Histogram();
+
+    /* Quantiles of every summary, as percentiles and as scraped */
+    private static final double[] QUANTILES = { 50, 90, 99, 99.9 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99", "0.999" };
+
+    private static final List<BufferPool> pools = new CopyOnWriteArrayList<>();
+
+    static {
+        for (int i = 0; i < commands.length; i++)
+            commands[i] = new LongAdder();
+        for (int i = 0; i < timeouts.length; i++)
+            timeouts[i] = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Counts a parsed command
+     *
+     * @param command the command
+     */
+    public static void command(CommandParser.Command command) {
+        commands[command.ordinal()].increment();
+    }
+
+    /**
+     * Counts a connection timed out
+     *
+     * @param reason why
+     */
+    public static void timeout(ConnectionTimeouts.Reason reason) {
+        timeouts[reason.ordinal()].increment();
+    }
+
+    /**
+     * Includes a reactor's buffer pool in the reports
+     *
+     * @param pool to include
+     */
+    public static void register(BufferPool pool) {
+        pools.add(pool);
+    }
+
+    /**
+     * Publishes the metrics over JMX
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("chat:type=Metrics"));
+        } catch (Exception ex) {
+            System.err.println("Error registering metrics MBean: " + ex);
+        }
+    }
+
+    @Override
+    public long getConnectedUsers() {
+        return User.getAll().size();
+    }
+
+    @Override
+    public long getLiveRooms() {
+        return Room.count();
+    }
+
+    @Override
+    public long getInternedNames() {
+        return NameIds.size();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getLinesFramed() {
+        return linesFramed.sum();
+    }
+
+    @Override
+    public long getPartialWrites() {
+        return partialWrites.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttledUsers.sum() + throttledRooms.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        long total = 0;
+        for (LongAdder timeout : timeouts)
+            total += timeout.sum();
+        return total;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        return RoomHistory.totalBytes();
+    }
+
+    @Override
+    public long getHistoryFrames() {
+        return RoomHistory.totalFrames();
+    }
+
+    @Override
+    public long getHistoryReplayed() {
+        return historyReplayed.sum();
+    }
+
+    @Override
+    public long getHistoryEvictions() {
+        return historyDepthEvictions.sum() + historyMemoryEvictions.sum();
+    }
+
+    @Override
+    public long getJournalRecords() {
+        return journalRecords.sum();
+    }
+
+    @Override
+    public long getJournalDropped() {
+        return journalDropped.sum();
+    }
+
+    @Override
+    public long getLogDropped() {
+        return logDropped.sum();
+    }
+
+    @Override
+    public long getJournalCommitP99Nanos() {
+        return journalCommit.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getCompressBytesSaved() {
+        return compressBytesIn.sum() - compressBytesOut.sum();
+    }
+
+    @Override
+    public long getClusterNodesUp() {
+        return Cluster.nodesUp();
+    }
+
+    @Override
+    public long getClusterHopP99Nanos() {
+        return clusterHop.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getSelectLoopP50Nanos() {
+        return selectLoop.valueAtPercentile(50);
+    }
+
+    @Override
+    public long getSelectLoopP99Nanos() {
+        return selectLoop.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getBroadcastFanoutP99() {
+        return broadcastFanout.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getBroadcastP99Nanos() {
+        return broadcastDuration.valueAtPercentile(99);
+    }
+
+    @Override
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        gauge(sb, "chat_connected_users", getConnectedUsers());
+        gauge(sb, "chat_live_rooms", getLiveRooms());
+        gauge(sb, "chat_interned_names", getInternedNames());
+        counter(sb, "chat_connections_accepted_total", getConnectionsAccepted());
+        counter(sb, "chat_connections_closed_total", getConnectionsClosed());
+        counter(sb, "chat_connections_rejected_total", getConnectionsRejected());
+        counter(sb, "chat_bytes_read_total", getBytesRead());
+        counter(sb, "chat_bytes_written_total", getBytesWritten());
+        counter(sb, "chat_lines_framed_total", getLinesFramed());
+        counter(sb, "chat_partial_writes_total", getPartialWrites());
+        counter(sb, "chat_write_calls_total", getWriteCalls());
+        counter(sb, "chat_frames_written_total", getFramesWritten());
+        counter(sb, "chat_dropped_frames_total", getDroppedFrames());
+        counter(sb, "chat_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+
+        sb.append("# TYPE chat_throttled_total counter\n");
+        sb.append("chat_throttled_total{scope=\"user\"} ").append(throttledUsers.sum()).append('\n');
+        sb.append("chat_throttled_total{scope=\"room\"} ").append(throttledRooms.sum()).append('\n');
+        counter(sb, "chat_throttle_disconnects_total", throttleDisconnects.sum());
+        counter(sb, "chat_drained_connections_total", drainedConnections.sum());
+
+        sb.append("# TYPE chat_timeouts_total counter\n");
+        for (ConnectionTimeouts.Reason reason : ConnectionTimeouts.Reason.values())
+            sb.append("chat_timeouts_total{reason=\"").append(reason.name().toLowerCase()).append("\"} ")
+                    .append(timeouts[reason.ordinal()].sum()).append('\n');
+
+        gauge(sb, "chat_history_bytes", getHistoryBytes());
+        gauge(sb, "chat_history_frames", getHistoryFrames());
+        counter(sb, "chat_history_replayed_total", getHistoryReplayed());
+        sb.append("# TYPE chat_history_evictions_total counter\n");
+        sb.append("chat_history_evictions_total{reason=\"depth\"} ").append(historyDepthEvictions.sum()).append('\n');
+        sb.append("chat_history_evictions_total{reason=\"memory\"} ").append(historyMemoryEvictions.sum())
+                .append('\n');
+
+        counter(sb, "chat_journal_records_total", getJournalRecords());
+        counter(sb, "chat_journal_dropped_total", getJournalDropped());
+        counter(sb, "chat_journal_segments_deleted_total", journalSegmentsDeleted.sum());
+
+        counter(sb, "chat_compressed_frames_total", getCompressedFrames());
+        counter(sb, "chat_compress_bytes_in_total", compressBytesIn.sum());
+        counter(sb, "chat_compress_bytes_out_total", compressBytesOut.sum());
+        counter(sb, "chat_compress_incompressible_total", compressIncompressible.sum());
+
+        counter(sb, "chat_mailbox_frames_total", mailboxFrames.sum());
+        counter(sb, "chat_mailbox_overflow_total", mailboxOverflow.sum());
+
+        counter(sb, "chat_log_events_total", logEvents.sum());
+        counter(sb, "chat_log_dropped_total", getLogDropped());
+
+        gauge(sb, "chat_cluster_nodes_up", getClusterNodesUp());
+        counter(sb, "chat_cluster_sent_total", clusterSent.sum());
+        counter(sb, "chat_cluster_received_total", clusterReceived.sum());
+        counter(sb, "chat_cluster_dropped_total", clusterDropped.sum());
+
+        sb.append("# TYPE chat_commands_total counter\n");
+        for (CommandParser.Command command : CommandParser.Command.values())
+            sb.append("chat_commands_total{command=\"").append(command.name().toLowerCase()).append("\"} ")
+                    .append(commands[command.ordinal()].sum()).append('\n');
+
+        summary(sb, "chat_select_loop_seconds", selectLoop, 1e-9);
+        summary(sb, "chat_broadcast_seconds", broadcastDuration, 1e-9);
+        summary(sb, "chat_broadcast_fanout", broadcastFanout, 1);
+        summary(sb, "chat_journal_commit_seconds", journalCommit, 1e-9);
+        summary(sb, "chat_compress_seconds", compressDuration, 1e-9);
+        summary(sb, "chat_cluster_hop_seconds", clusterHop, 1e-9);
+
+        long inUse = 0, capacity = 0, hits = 0, misses = 0;
+        for (BufferPool pool : pools) {
+            inUse += pool.getInUse();
+            capacity += pool.getCapacity();
+            hits += pool.getHits();
+            misses += pool.getMisses();
+        }
+        gauge(sb, "chat_buffer_pool_in_use", inUse);
+        gauge(sb, "chat_buffer_pool_capacity", capacity);
+        counter(sb, "chat_buffer_pool_hits_total", hits);
+        counter(sb, "chat_buffer_pool_misses_total", misses);
+
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, Histogram h, double scale) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        long[] values = h.valuesAtPercentiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++)
+            sb.append(name).append("{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                    .append(values[i] * scale).append('\n');
+        sb.append(name).append("_max ").append(h.getMax() * scale).append('\n');
+        sb.append(name).append("_count ").append(h.getCount()).append('\n');
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * JMX view of the server metrics, registered as chat:type=Metrics.
+ */
+public interface MetricsMBean {
+    long getConnectedUsers();
+
+    long getLiveRooms();
+
+    long getInternedNames();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsClosed();
+
+    long getConnectionsRejected();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getLinesFramed();
+
+    long getPartialWrites();
+
+    long getWriteCalls();
+
+    long getFramesWritten();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    long getThrottled();
+
+    long getTimeouts();
+
+    long getHistoryBytes();
+
+    long getHistoryFrames();
+
+    long getHistoryReplayed();
+
+    long getHistoryEvictions();
+
+    long getJournalRecords();
+
+    long getJournalDropped();
+
+    long getJournalCommitP99Nanos();
+
+    long getLogDropped();
+
+    long getCompressedFrames();
+
+    long getCompressBytesSaved();
+
+    long getClusterNodesUp();
+
+    long getClusterHopP99Nanos();
+
+    long getSelectLoopP50Nanos();
+
+    long getSelectLoopP99Nanos();
+
+    long getBroadcastFanoutP99();
+
+    long getBroadcastP99Nanos();
+
+    /**
+     * Gets every metric in the plain-text scrape format
+     *
+     * @return the scrape text
+     */
+    String scrape();
+}
@@ -0,0 +1,99 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An interned nickname or room name, encoded to UTF-8 once and numbered for
+ * the binary protocol, so frames copy its bytes instead of encoding it again.
+ * Get one from NameIds, and give it back there once done with it. As a
+ * nickname it also records the user on this server holding it, which makes
+ * it the entry looked up to find a user.
+ */
+public final class Name {
+    private static final AtomicReferenceFieldUpdater<Name, User> OWNER = AtomicReferenceFieldUpdater
+            .newUpdater(Name.class, User.class, "owner");
+    private static final AtomicIntegerFieldUpdater<Name> REFS = AtomicIntegerFieldUpdater.newUpdater(Name.class,
+            "refs");
+
+    private final String text;
+    private final byte[] utf8;
+    private final int id;
+
+    private volatile User owner;
+
+    /* Holders of this name; once it drops to 0 the name is dead and its id free */
+    private volatile int refs = 1;
+
+    Name(String text, int id) {
+        this.text = text;
+        this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+        this.id = id;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the encoded name
+     *
+     * @return the UTF-8 bytes, shared and not to be modified
+     */
+    public byte[] utf8() {
+        return utf8;
+    }
+
+    /**
+     * Gets the connected user with this nickname
+     *
+     * @return the user, or null if nobody here has it
+     */
+    public User getOwner() {
+        return owner;
+    }
+
+    /**
+     * Takes the nickname for a user
+     *
+     * @param user to take it
+     * @return false if someone, the user included, already has it
+     */
+    public boolean claim(User user) {
+        return OWNER.compareAndSet(this, null, user);
+    }
+
+    /**
+     * Gives the nickname back
+     *
+     * @param user who should have it
+     * @return false if the user did not have it
+     */
+    public boolean release(User user) {
+        return OWNER.compareAndSet(this, user, null);
+    }
+
+    /* Adds a holder, unless the last one already let go */
+    boolean retain() {
+        int count;
+        do {
+            count = refs;
+            if (count == 0)
+                return false;
+        } while (!REFS.compareAndSet(this, count, count + 1));
+        return true;
+    }
+
+    /* Removes a holder, true for the last one */
+    boolean drop() {
+        return REFS.decrementAndGet(this) == 0;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns nicknames and room names to Name, with its UTF-8 bytes and an
+ * integer id for the binary protocol, which sends ids where the text protocol
+ * repeats names. Names are counted references: users hold their nickname,
+ * rooms their name, histories the senders of the frames they keep and the
+ * cluster the nicknames of users on other nodes. The last release forgets
+ * the name, so only names in use take memory.
+ *
+ * An id names the same name for as long as it is held, so a client can
+ * resolve any id it gets. A forgotten name's id is handed out again, but
+ * only after RECYCLE_AFTER others were freed, leaving clients time to stop
+ * using it; ids stay small enough to index a table.
+ */
+public class NameIds {
+    /* Ids freed and not handed out again yet, beyond which the oldest is reused */
+    private static final int RECYCLE_AFTER = 1024;
+
+    private static final Map<String, Name> names = new ConcurrentHashMap<>();
+
+    /* Names by id; replaced by a larger copy under the class lock when ids run past its end */
+    private static volatile AtomicReferenceArray<Name> byId = new AtomicReferenceArray<>(1024);
+    private static int next = 1;
+    private static final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+    private NameIds() {
+    }
+
+    /**
+     * Gets the interned name, assigning an id on first use. Every call must be
+     * matched by a {@link #release}.
+     *
+     * @param name to intern
+     * @return its Name, whose id is never 0
+     */
+    public static Name acquire(String name) {
+        while (true) {
+            Name interned = names.get(name);
+            if (interned == null) {
+                Name assigned = assign(name);
+                interned = names.putIfAbsent(name, assigned);
+                if (interned == null)
+                    return assigned;
+                recycle(assigned);
+            }
+
+            if (interned.retain())
+                return interned;
+
+            /* Its last holder let go just now; help it out of the map and assign a new one */
+            names.remove(name, interned);
+        }
+    }
+
+    /**
+     * Holds a name once more, for another holder
+     *
+     * @param name already held by the caller
+     * @return the same name
+     */
+    public static Name acquire(Name name) {
+        name.retain();
+        return name;
+    }
+
+    /**
+     * Lets go of a name, forgetting it after its last holder
+     *
+     * @param name from {@link #acquire}, null for none
+     */
+    public static void release(Name name) {
+        if (name == null || !name.drop())
+            return;
+
+        names.remove(name.getText(), name);
+        recycle(name);
+    }
+
+    /**
+     * Gets the interned name without interning it
+     *
+     * @param name to look up
+     * @return its Name, or null if nobody holds it
+     */
+    public static Name find(String name) {
+        return names.get(name);
+    }
+
+    private static synchronized Name assign(String name) {
+        int id;
+        if (free.size() > RECYCLE_AFTER) {
+            id = free.poll();
+        } else {
+            AtomicReferenceArray<Name> table = byId;
+            if (next == table.length()) {
+                AtomicReferenceArray<Name> grown = new AtomicReferenceArray<>(table.length() * 2);
+                for (int i = 0; i < table.length(); i++)
+                    grown.set(i, table.get(i));
+                byId = grown;
+            }
+            id = next++;
+        }
+
+        Name interned = new Name(name, id);
+        byId.set(id, interned);
+        return interned;
+    }
+
+    private static synchronized void recycle(Name name) {
+        byId.compareAndSet(name.getId(), name, null);
+        free.add(name.getId());
+    }
+
+    /**
+     * Resolves an id
+     *
+     * @param id from {@link Name#getId}
+     * @return the name, or null if nobody holds a name with this id
+     */
+    public static Name name(int id) {
+        AtomicReferenceArray<Name> table = byId;
+        return id > 0 && id < table.length() ? table.get(id) : null;
+    }
+
+    public static int size() {
+        return names.size();
+    }
+}
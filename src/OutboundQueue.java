@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one user. Any
+ * thread may offer frames, only the owning event loop flushes them. Queued
+ * frames go out together, in gathering writes of up to maxBatchBytes.
+ */
+public class OutboundQueue {
+    /* Frames per gathering write, well under the kernel's IOV_MAX */
+    public static final int MAX_BATCH_FRAMES = 128;
+
+    /* Flushes run on the owner thread, so one batch array per thread is enough */
+    private static final ThreadLocal<ByteBuffer[]> batches = ThreadLocal
+            .withInitial(() -> new ByteBuffer[MAX_BATCH_FRAMES]);
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+
+    private final int maxFrames;
+    private final int maxBytes;
+    private final int maxBatchBytes;
+    private final SlowConsumerPolicy policy;
+
+    /* Bytes still to be written across all queued frames */
+    private int bytes = 0;
+
+    /* Bytes flushed over the queue's life, to tell a slow consumer from a stuck one */
+    private long flushed = 0;
+
+    /* Set while a flush is pending on the owning reactor */
+    private boolean flushScheduled = false;
+
+    /* Set once the last frame is queued; anything offered later is thrown away */
+    private boolean sealed = false;
+
+    public OutboundQueue(int maxFrames, int maxBytes, int maxBatchBytes, SlowConsumerPolicy policy) {
+        this.maxFrames = Math.max(1, maxFrames);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxBatchBytes = maxBatchBytes;
+        this.policy = policy;
+    }
+
+    public OutboundQueue() {
+        this(Config.OUTBOUND_MAX_FRAMES, Config.OUTBOUND_MAX_BYTES, Config.BATCH_MAX_BYTES,
+                Config.SLOW_CONSUMER_POLICY);
+    }
+
+    /**
+     * Queues a frame, applying the slow consumer policy if the queue is full
+     *
+     * @param frame to queue, owned by the queue from now on
+     * @return false if the user should be disconnected
+     */
+    public synchronized boolean offer(ByteBuffer frame) {
+        if (sealed)
+            return true;
+
+        int size = frame.remaining();
+
+        while (!frames.isEmpty() && (frames.size() >= maxFrames || bytes + size > maxBytes)) {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case COALESCE:
+                    if (bytes + size <= maxBytes && coalesce())
+                        break;
+                    if (!dropOldest())
+                        return dropNew();
+                    break;
+                default:
+                    if (!dropOldest())
+                        return dropNew();
+            }
+        }
+
+        frames.add(frame);
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Queues the frame that must go out last, such as BYE, so that frames
+     * offered from other threads meanwhile can't follow it
+     *
+     * @param frame to queue, owned by the queue from now on
+     * @return false if the user should be disconnected
+     */
+    public synchronized boolean offerLast(ByteBuffer frame) {
+        boolean queued = offer(frame);
+        sealed = true;
+        return queued;
+    }
+
+    /**
+     * Removes the oldest frame that hasn't started going out on the wire
+     *
+     * @return if a frame was dropped
+     */
+    private boolean dropOldest() {
+        Iterator<ByteBuffer> it = frames.iterator();
+
+        while (it.hasNext()) {
+            ByteBuffer frame = it.next();
+
+            /* A partially written frame must finish or the stream gets corrupted */
+            if (frame.position() > 0)
+                continue;
+
+            it.remove();
+            bytes -= frame.remaining();
+            Metrics.droppedFrames.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    /* Nothing but a half written frame left, so the new one is dropped instead */
+    private boolean dropNew() {
+        Metrics.droppedFrames.increment();
+        return true;
+    }
+
+    /*
+     * Copies the queued frames into a single buffer, except a half written
+     * head, which stays in front on its own: the merged buffer starts out
+     * unwritten and may be dropped whole later, which must never cut a frame
+     * already on the wire
+     *
+     * @return false if there weren't two frames to merge
+     */
+    private boolean coalesce() {
+        ByteBuffer started = frames.peek().position() > 0 ? frames.poll() : null;
+        int startedBytes = started == null ? 0 : started.remaining();
+
+        if (frames.size() < 2) {
+            if (started != null)
+                frames.addFirst(started);
+            return false;
+        }
+
+        ByteBuffer merged = ByteBuffer.allocate(bytes - startedBytes);
+        for (ByteBuffer frame : frames)
+            merged.put(frame);
+
+        merged.flip();
+        frames.clear();
+        if (started != null)
+            frames.add(started);
+        frames.add(merged);
+        return true;
+    }
+
+    /**
+     * Marks a flush as pending
+     *
+     * @return true if the caller must schedule it, false if one already is
+     */
+    public synchronized boolean scheduleFlush() {
+        if (flushScheduled)
+            return false;
+
+        flushScheduled = true;
+        return true;
+    }
+
+    /**
+     * Writes queued frames, a batch per gathering write, until the queue
+     * drains or the channel stops accepting bytes
+     *
+     * @param channel to write to
+     * @return true if everything was written
+     */
+    public synchronized boolean flush(GatheringByteChannel channel) throws IOException {
+        flushScheduled = false;
+
+        ByteBuffer[] batch = batches.get();
+        while (!frames.isEmpty()) {
+            int count = fill(batch);
+            long written = channel.write(batch, 0, count);
+            bytes -= written;
+            flushed += written;
+            Metrics.bytesWritten.add(written);
+            Metrics.writeCalls.increment();
+
+            /* Drop the frames that went out in full */
+            int done = 0;
+            while (done < count && !batch[done].hasRemaining())
+                done++;
+            for (int i = 0; i < done; i++)
+                frames.poll();
+            Metrics.framesWritten.add(done);
+            Arrays.fill(batch, 0, count, null);
+
+            /* Socket send buffer is full, wait for OP_WRITE */
+            if (done < count) {
+                Metrics.partialWrites.increment();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves the next batch of frames out of the queue, for writers that block
+     * until a batch is written in full and so must not hold the queue meanwhile
+     *
+     * @param batch to fill, MAX_BATCH_FRAMES long
+     * @return frames taken; 0 once the queue is empty, which also ends the
+     *         pending flush
+     */
+    public synchronized int drainTo(ByteBuffer[] batch) {
+        int count = fill(batch);
+
+        if (count == 0)
+            flushScheduled = false;
+
+        for (int i = 0; i < count; i++) {
+            frames.poll();
+            bytes -= batch[i].remaining();
+        }
+
+        return count;
+    }
+
+    /* Lines up frames from the head, at least one and as many as fit in maxBatchBytes */
+    private int fill(ByteBuffer[] batch) {
+        int count = 0;
+        long size = 0;
+
+        for (ByteBuffer frame : frames) {
+            if (count == batch.length || (count > 0 && size + frame.remaining() > maxBatchBytes))
+                break;
+
+            batch[count++] = frame;
+            size += frame.remaining();
+        }
+
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    public synchronized int bytes() {
+        return bytes;
+    }
+
+    public synchronized long flushed() {
+        return flushed;
+    }
+}
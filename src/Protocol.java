@@ -1,40 +1,87 @@
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetDecoder;
 
 public class Protocol {
     public static enum State {
         INIT, INSIDE, OUTSIDE
     };
 
-    private static String[] parseInput(String input) {
-        return input.split(" ");
+    /* Parsers are reused line after line, one per reactor thread */
+    private static final ThreadLocal<CommandParser> parsers = ThreadLocal.withInitial(CommandParser::new);
+    private static final ThreadLocal<BinaryParser> binaryParsers = ThreadLocal.withInitial(BinaryParser::new);
+
+    /**
+     * Handles every complete line, or binary frame, waiting in the user's
+     * framer. Stops early if a command closes the connection.
+     *
+     * @param user    whose input to handle
+     * @param decoder for text lines
+     */
+    public static void processFramed(User user, CharsetDecoder decoder) throws IOException {
+        LineFramer framer = user.getFramer();
+
+        if (framer.negotiate()) {
+            user.setBinary();
+            if (framer.isCompressed())
+                user.setCompressed();
+        }
+
+        if (framer.isBinary()) {
+            ByteBuffer frame;
+            while (user.getChannel().isOpen() && user.getPausedUntil() == 0 && (frame = framer.nextFrame()) != null) {
+                Metrics.linesFramed.increment();
+                processFrame(frame, user);
+            }
+        } else {
+            String line;
+            while (user.getChannel().isOpen() && user.getPausedUntil() == 0
+                    && (line = framer.nextLine(decoder)) != null) {
+                Metrics.linesFramed.increment();
+                processInput(line, user);
+            }
+        }
     }
 
-    public static void processInput(String input, SocketChannel channel) throws IOException {
-        User user = User.getByChannel(channel);
-        input = input.replace("\n", "").replace("\r", "");
+    public static void processFrame(ByteBuffer frame, User user) throws IOException {
+        if (frame.remaining() == 5 && frame.get(frame.position()) == BinaryCodec.WHOIS) {
+            whoisCommand(frame.getInt(frame.position() + 1), user);
+            return;
+        }
 
+        BinaryParser command = binaryParsers.get();
+        Metrics.command(command.parse(frame));
+        if (RateLimits.admit(command, user))
+            process(command, user);
+    }
+
+    public static void processInput(String input, User user) throws IOException {
+        CommandParser command = parsers.get();
+        Metrics.command(command.parse(input));
+        if (RateLimits.admit(command, user))
+            process(command, user);
+    }
+
+    private static void process(Request command, User user) throws IOException {
         switch (user.getCurrentState()) {
             case INIT:
-                initState(input, user);
+                initState(command, user);
                 break;
             case INSIDE:
-                insideState(input, user);
+                insideState(command, user);
                 break;
             case OUTSIDE:
-                outsideState(input, user);
+                outsideState(command, user);
                 break;
         }
     }
 
-    private static void initState(String input, User user) throws IOException {
-        String[] tokens = parseInput(input);
-
-        switch (tokens[0]) {
-            case "/nick":
-                nickCommand(tokens, user);
+    private static void initState(Request command, User user) throws IOException {
+        switch (command.getCommand()) {
+            case NICK:
+                nickCommand(command, user);
                 break;
-            case "/bye":
+            case BYE:
                 byeCommand(user);
                 break;
             default:
@@ -42,94 +89,103 @@ public class Protocol {
         }
     }
 
-    private static void insideState(String input, User user) throws IOException {
-        /* Checks if its a message without // at the start */
-        if (input.matches("^[^/](.|\\s)*"))
-            user.sendMessage(input);
-        /* Checks if its a message with // at the start */
-        else if (input.matches("^(//)(.|\\s)*"))
-            user.sendMessage(input.replaceFirst("/", ""));
-        else {
-            String[] tokens = parseInput(input);
-
-            switch (tokens[0]) {
-                case "/join":
-                    joinCommand(tokens, user);
-                    break;
-                case "/nick":
-                    nickCommand(tokens, user);
-                    break;
-                case "/leave":
-                    leaveCommand(user);
-                    break;
-                case "/priv":
-                    privCommand(user, input);
-                    break;
-                case "/bye":
-                    byeCommand(user);
-                    break;
-                default:
-                    MessagingUtils.sendError(user);
-
-            }
+    private static void insideState(Request command, User user) throws IOException {
+        switch (command.getCommand()) {
+            /* A message, with or without // at the start */
+            case MESSAGE:
+                if (command.payload() != null)
+                    user.sendMessage(command.payload());
+                else
+                    user.sendMessage(command.text());
+                break;
+            case JOIN:
+                joinCommand(command, user);
+                break;
+            case NICK:
+                nickCommand(command, user);
+                break;
+            case LEAVE:
+                leaveCommand(user);
+                break;
+            case PRIV:
+                privCommand(command, user);
+                break;
+            case BYE:
+                byeCommand(user);
+                break;
+            default:
+                MessagingUtils.sendError(user);
         }
     }
 
-    private static void outsideState(String input, User user) throws IOException {
-        String[] tokens = parseInput(input);
-
-        switch (tokens[0]) {
-            case "/nick":
-                nickCommand(tokens, user);
+    private static void outsideState(Request command, User user) throws IOException {
+        switch (command.getCommand()) {
+            case NICK:
+                nickCommand(command, user);
                 break;
-            case "/join":
-                joinCommand(tokens, user);
+            case JOIN:
+                joinCommand(command, user);
                 break;
-            case "/bye":
+            case BYE:
                 byeCommand(user);
                 break;
-            case "/priv":
-                privCommand(user, input);
+            case PRIV:
+                privCommand(command, user);
                 break;
             default:
                 MessagingUtils.sendError(user);
         }
     }
 
-    private static void nickCommand(String[] tokens, User user) throws IOException {
-        String oldName = user.getName();
+    private static void nickCommand(Request command, User user) throws IOException {
+        if (!command.hasSingleArgument()) {
+            MessagingUtils.sendError(user);
+            return;
+        }
 
-        if (tokens.length != 2 || !user.changeName(tokens[1])) {
+        Name oldName = user.getInternedName();
+        user.changeName(command.argument(), changed -> nickChanged(user, oldName, changed));
+    }
+
+    /* Runs once the name is decided, later on the event loop when the cluster had to be asked */
+    private static void nickChanged(User user, Name oldName, boolean changed) throws IOException {
+        if (!changed) {
             MessagingUtils.sendError(user);
-        } else {
-            if (user.getCurrentState() == State.INIT)
-                user.setState(State.OUTSIDE);
-            else if (user.getCurrentState() == State.INSIDE)
-                user.getCurrentRoom().notifyChangedNickname(oldName, user.getName());
-            MessagingUtils.sendOK(user);
+            return;
         }
+
+        if (user.getCurrentState() == State.INIT)
+            user.setState(State.OUTSIDE);
+        else if (user.getCurrentState() == State.INSIDE)
+            user.getCurrentRoom().notifyChangedNickname(oldName, user.getInternedName());
+        MessagingUtils.sendOK(user);
     }
 
-    private static void privCommand(User user, String input) throws IOException {
-        String[] tokens = input.split(" ", 3);
+    private static void privCommand(Request command, User user) throws IOException {
+        boolean sent;
 
-        if (tokens.length == 3 && user.sendPrivateMessage(tokens[1], tokens[2])) {
+        if (!command.hasArgumentAndText())
+            sent = false;
+        else if (command.payload() != null)
+            sent = user.sendPrivateMessage(command.argument(), command.payload());
+        else
+            sent = user.sendPrivateMessage(command.argument(), command.rest());
+
+        if (sent) {
             MessagingUtils.sendOK(user);
         } else {
             MessagingUtils.sendError(user);
         }
     }
 
-    private static void joinCommand(String[] tokens, User user) throws IOException {
-        if (tokens.length != 2) {
+    private static void joinCommand(Request command, User user) throws IOException {
+        if (!command.hasSingleArgument()) {
             MessagingUtils.sendError(user);
         } else {
-            Room room = Room.getByName(tokens[1]);
-            user.joinRoom(room);
+            user.joinRoom(command.argument());
             MessagingUtils.sendOK(user);
+            user.setState(State.INSIDE);
         }
-
-        user.setState(State.INSIDE);
     }
 
     private static void leaveCommand(User user) throws IOException {
@@ -138,6 +194,16 @@ public class Protocol {
         user.setState(State.OUTSIDE);
     }
 
+    /* Binary only: resolves a name id, in any state */
+    private static void whoisCommand(int id, User user) throws IOException {
+        Name name = NameIds.name(id);
+
+        if (name == null)
+            MessagingUtils.sendError(user);
+        else
+            MessagingUtils.sendMessage(user, MessageType.NAME, name);
+    }
+
     private static void byeCommand(User user) throws IOException {
         MessagingUtils.sendBye(user);
         user.delete();
@@ -0,0 +1,11 @@
+/**
+ * What to do with a line over a user's or a room's rate limit.
+ */
+public enum RateLimitPolicy {
+    /* Answer ERROR and drop the line */
+    REJECT,
+    /* Handle the line, then stop reading the connection until the limit allows the next one */
+    DELAY,
+    /* Close the connection */
+    DISCONNECT
+}
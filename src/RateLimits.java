@@ -0,0 +1,95 @@
+import java.io.IOException;
+
+/**
+ * Per user and per room rate limits, checked before a command is handled.
+ * Every command counts against its user's bucket, except /bye and /leave,
+ * which only ever lighten the load; a throttled client can always go. A
+ * message to a room also counts against the room's bucket, since each
+ * message is multiplied by the room's members. What happens over the limit
+ * is chat.rate.policy.
+ */
+public class RateLimits {
+    private RateLimits() {
+    }
+
+    /**
+     * Gets a bucket for a new user
+     *
+     * @return the bucket, or null if users are not limited
+     */
+    public static TokenBucket newUserBucket() {
+        return Config.RATE_USER > 0 ? new TokenBucket(Config.RATE_USER, Config.RATE_USER_BURST) : null;
+    }
+
+    /**
+     * Gets a bucket for a new room
+     *
+     * @return the bucket, or null if rooms are not limited
+     */
+    public static TokenBucket newRoomBucket() {
+        return Config.RATE_ROOM > 0 ? new TokenBucket(Config.RATE_ROOM, Config.RATE_ROOM_BURST) : null;
+    }
+
+    /**
+     * Takes the tokens a command needs, applying the policy if there aren't
+     * any
+     *
+     * @param command parsed, not handled yet
+     * @param user    who sent it
+     * @return false if the command must be dropped
+     */
+    public static boolean admit(Request command, User user) throws IOException {
+        if (command.getCommand() == CommandParser.Command.BYE || command.getCommand() == CommandParser.Command.LEAVE)
+            return true;
+
+        TokenBucket userBucket = user.getRateLimit();
+        TokenBucket roomBucket = null;
+        if (command.getCommand() == CommandParser.Command.MESSAGE && user.getCurrentState() == Protocol.State.INSIDE)
+            roomBucket = user.getCurrentRoom().getRateLimit();
+
+        if (userBucket == null && roomBucket == null)
+            return true;
+
+        long now = System.nanoTime();
+
+        if (Config.RATE_POLICY == RateLimitPolicy.DELAY) {
+            long userWait = userBucket == null ? 0 : userBucket.acquire(now);
+            long roomWait = roomBucket == null ? 0 : roomBucket.acquire(now);
+            if (userWait > 0)
+                Metrics.throttledUsers.increment();
+            if (roomWait > 0)
+                Metrics.throttledRooms.increment();
+
+            long wait = Math.max(userWait, roomWait);
+            if (wait > 0 && user.getEventLoop() != null)
+                user.getEventLoop().pauseReading(user, now + wait);
+            return true;
+        }
+
+        if (userBucket != null && !userBucket.tryAcquire(now)) {
+            Metrics.throttledUsers.increment();
+            return refuse(user);
+        }
+
+        if (roomBucket != null && !roomBucket.tryAcquire(now)) {
+            /* The message never went out, so it doesn't count against its sender */
+            if (userBucket != null)
+                userBucket.release();
+            Metrics.throttledRooms.increment();
+            return refuse(user);
+        }
+
+        return true;
+    }
+
+    private static boolean refuse(User user) throws IOException {
+        if (Config.RATE_POLICY == RateLimitPolicy.DISCONNECT) {
+            Metrics.throttleDisconnects.increment();
+            user.disconnect();
+        } else {
+            MessagingUtils.sendError(user);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,448 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A worker selector loop. Owns the channels handed to it by the acceptor and
+ * runs every read, parse and write for their users on its own thread.
+ */
+public class Reactor implements Runnable, EventLoop {
+	/* Decoders are stateful, so every loop needs its own */
+	private final CharsetDecoder decoder = ChatServer.charset.newDecoder();
+
+	/* A multiplexor of SelectableChannel objects. */
+	private final Selector selector;
+
+	/* Work submitted by other threads, run on this loop */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	/* Connections handed over by the acceptor, registered a batch per wake-up between reads */
+	private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+	/* Every read lands here first; only partial lines borrow from the pool */
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(Config.POOL_BUFFER_SIZE);
+
+	private final BufferPool bufferPool = new BufferPool();
+
+	/* Users that got frames during this wake-up, flushed together before the next select */
+	private final ArrayList<User> dirty = new ArrayList<>();
+
+	/* When the oldest of those frames was queued */
+	private long batchStart;
+
+	private static final long BATCH_MAX_DELAY_NANOS = Config.BATCH_MAX_DELAY_MICROS * 1000L;
+
+	/* Connection timeouts, one timer per user, advanced once per wake-up */
+	private final TimingWheel wheel = ConnectionTimeouts.newWheel();
+
+	private final Thread thread;
+
+	private final int index;
+
+	/* Frames for our users from each of the other reactors, by sender index, made by the sender on first use */
+	private final AtomicReferenceArray<Mailbox> inbox;
+
+	/* Reactors we posted to during this wake-up, or that still have frames in our overflow */
+	private final ArrayList<Reactor> mailed = new ArrayList<>();
+
+	public Reactor(int index, int count) throws IOException {
+		this.selector = Selector.open();
+		Metrics.register(bufferPool);
+		this.thread = new Thread(this, "reactor-" + index);
+		this.index = index;
+		this.inbox = new AtomicReferenceArray<>(count);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Checks if the caller is running on this loop
+	 *
+	 * @return if the current thread is the loop thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Gets the pool partial lines are kept in. Only to be used on this loop.
+	 *
+	 * @return the pool
+	 */
+	@Override
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/*
+	 * Frames are not written as they are queued: the user is remembered and
+	 * everything it got during this wake-up goes out in one gathering write.
+	 */
+	@Override
+	public void requestFlush(User user) {
+		if (!inEventLoop()) {
+			execute(() -> requestFlush(user));
+			return;
+		}
+
+		if (dirty.isEmpty())
+			batchStart = System.nanoTime();
+		dirty.add(user);
+	}
+
+	private void flushDirty() {
+		for (User user : dirty)
+			if (user.getChannel().isOpen())
+				user.flush();
+		dirty.clear();
+	}
+
+	/*
+	 * A user of another reactor gets the frame through the mailbox from this loop
+	 * to that one: no lock, and a single wake-up for everything posted to it
+	 * during this wake-up, instead of a task and a wake-up per frame.
+	 */
+	@Override
+	public void deliver(User target, ByteBuffer frame) {
+		EventLoop owner = target.getEventLoop();
+		if (owner == this || !(owner instanceof Reactor) || !inEventLoop()) {
+			target.send(frame);
+			return;
+		}
+
+		Reactor to = (Reactor) owner;
+		to.mailboxFrom(index).post(target, frame);
+		if (!mailed.contains(to))
+			mailed.add(to);
+	}
+
+	/* Only the sending reactor ever calls this with its own index, so creating it needs no CAS */
+	private Mailbox mailboxFrom(int sender) {
+		Mailbox mailbox = inbox.get(sender);
+		if (mailbox == null) {
+			mailbox = new Mailbox(Config.MAILBOX_SIZE);
+			inbox.set(sender, mailbox);
+		}
+		return mailbox;
+	}
+
+	/* Hands the frames posted to each of the other reactors over, and wakes it once */
+	private void wakeMailed() {
+		for (Iterator<Reactor> it = mailed.iterator(); it.hasNext();) {
+			Reactor to = it.next();
+			if (to.inbox.get(index).moveOverflow())
+				it.remove();
+			to.selector.wakeup();
+		}
+	}
+
+	/* Takes in the frames the other reactors posted to our users, a batch per mailbox */
+	private void drainMailboxes() {
+		for (int i = 0; i < inbox.length(); i++) {
+			Mailbox mailbox = inbox.get(i);
+			if (mailbox != null)
+				Metrics.mailboxFrames.add(mailbox.drain());
+		}
+	}
+
+	@Override
+	public void requestDisconnect(User user) {
+		execute(user::disconnect);
+	}
+
+	/* Takes the user off the selector for a while; its timer brings it back */
+	@Override
+	public void pauseReading(User user, long until) {
+		user.setPausedUntil(until);
+
+		SelectionKey key = user.getChannel().keyFor(selector);
+		if (key != null && key.isValid())
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+		wheel.schedule(user.getTimer(), until);
+	}
+
+	@Override
+	public void resumeReading(User user) {
+		resume(user);
+	}
+
+	/* Handles the input left over when the user was paused, then reads again */
+	private void resume(User u) {
+		u.setPausedUntil(0);
+
+		SelectionKey key = u.getChannel().keyFor(selector);
+		if (key != null && key.isValid())
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+		if (!u.getFramer().hasPending())
+			return;
+
+		try {
+			Protocol.processFramed(u, decoder);
+			if (u.getChannel().isOpen())
+				u.getFramer().compact(bufferPool);
+		} catch (IOException ie) {
+			u.disconnect();
+		}
+	}
+
+	@Override
+	public void closed(User user) {
+		if (!inEventLoop()) {
+			execute(() -> closed(user));
+			return;
+		}
+
+		wheel.cancel(user.getTimer());
+	}
+
+	/*
+	 * A timer fired. Reads don't move timers, so most of the time the user
+	 * was active meanwhile and the timer is just set for the next deadline.
+	 */
+	private void expire(TimingWheel.Timer timer) {
+		User u = (User) timer.attachment();
+		if (!u.getChannel().isOpen())
+			return;
+
+		long now = System.nanoTime();
+		if (u.getPausedUntil() != 0 && now - u.getPausedUntil() >= 0)
+			resume(u);
+
+		ConnectionTimeouts.Reason reason = ConnectionTimeouts.expired(u, now);
+		if (reason == null) {
+			long deadline = ConnectionTimeouts.deadline(u, now);
+			if (deadline != Long.MAX_VALUE && !timer.isScheduled())
+				wheel.schedule(timer, deadline);
+			return;
+		}
+
+		Metrics.timeout(reason);
+		Log.event(LogEvent.TIMEOUT, Log.peer(u.getChannel()), reason);
+		u.disconnect();
+	}
+
+	/**
+	 * Runs a task on this loop, waking it up if it is blocked in select
+	 *
+	 * @param task to run
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Hands an accepted channel to this loop
+	 *
+	 * @param sc the accepted channel
+	 */
+	public void register(SocketChannel sc) {
+		accepted.add(sc);
+		selector.wakeup();
+	}
+
+	/*
+	 * Takes on at most a batch of the accepted connections, so the users already
+	 * here are read between batches when thousands reconnect at once
+	 */
+	private void registerAccepted() {
+		SocketChannel sc;
+		for (int i = 0; i < Config.ACCEPT_BATCH && (sc = accepted.poll()) != null; i++) {
+			try {
+				/* Make it non-blocking, so we can use a selector on it */
+				sc.configureBlocking(false);
+
+				/* Register it with the selector, write interest is added only on backlog */
+				SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+
+				/* Create a new user, it travels on the key from now on */
+				User u = User.create(sc, key, this);
+				if (ConnectionTimeouts.isEnabled()) {
+					long deadline = ConnectionTimeouts.deadline(u, System.nanoTime());
+					if (deadline != Long.MAX_VALUE)
+						wheel.schedule(u.getTimer(), deadline);
+				}
+			} catch (IOException ie) {
+				Log.event(LogEvent.ERROR, Log.peer(sc), ie);
+				Metrics.connectionsClosed.increment();
+				try {
+					sc.close();
+				} catch (IOException ie2) {
+					Log.event(LogEvent.ERROR, Log.peer(sc), ie2);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				runOnce();
+			} catch (Exception ex) {
+				Log.event(LogEvent.ERROR, thread.getName(), ex);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	private void runOnce() throws IOException {
+		/*
+		 * Selects a set of keys whose corresponding channels are ready for I/O
+		 * operations.
+		 */
+		int num = select();
+		long start = System.nanoTime();
+
+		runTasks();
+		drainMailboxes();
+		registerAccepted();
+		wheel.advance(start, this::expire);
+
+		/* No activity */
+		if (num == 0) {
+			wakeMailed();
+			flushDirty();
+			Metrics.selectLoop.record(System.nanoTime() - start);
+			return;
+		}
+
+		/* Returns this selector's selected-key set, i.e does ready fo IO op */
+		Set<SelectionKey> keySet = selector.selectedKeys();
+
+		/* Returns an iterator over the elements in this set. */
+		Iterator<SelectionKey> keyIt = keySet.iterator();
+
+		while (keyIt.hasNext()) {
+			/* Returns the next element in the iteration */
+			SelectionKey curKey = keyIt.next();
+
+			/* The socket drained enough to take more of the user's backlog */
+			if (curKey.isValid() && curKey.isWritable()) {
+				User u = (User) curKey.attachment();
+				if (u != null)
+					u.flush();
+			}
+
+			if (curKey.isValid() && curKey.isReadable()) {
+				SocketChannel sc = (SocketChannel) curKey.channel();
+				User u = (User) curKey.attachment();
+
+				try {
+					if (!getSocketInput(sc, u)) {
+						if (u != null)
+							u.delete();
+
+						curKey.cancel();
+
+						Log.event(LogEvent.CLOSE, Log.peer(sc));
+
+						try {
+							sc.close();
+						} catch (IOException ie) {
+							Log.event(LogEvent.ERROR, Log.peer(sc), ie);
+						}
+					} else {
+						u.setLastReadAt(start);
+
+						/* For each \n or binary frame (aka command or message) we do something */
+						Protocol.processFramed(u, decoder);
+
+						/* Keep whatever didn't end with a new line for the next read */
+						if (sc.isOpen())
+							u.getFramer().compact(bufferPool);
+					}
+				} catch (IOException ie) {
+					/* Undecodable input is the client's fault, anything else the connection's */
+					if (ie instanceof CharacterCodingException)
+						Log.event(LogEvent.PROTOCOL_ERROR, Log.peer(sc), ie);
+
+					if (u != null)
+						u.delete();
+
+					curKey.cancel();
+
+					try {
+						sc.close();
+					} catch (IOException ie2) {
+						Log.event(LogEvent.ERROR, Log.peer(sc), ie2);
+					}
+
+					Log.event(LogEvent.CLOSE, Log.peer(sc), ie);
+				}
+			}
+
+			/* A long wake-up must not hold replies back past the latency cap */
+			if (!dirty.isEmpty() && System.nanoTime() - batchStart >= BATCH_MAX_DELAY_NANOS)
+				flushDirty();
+		}
+
+		// We remove the selected keys, because we've dealt with them.
+		keySet.clear();
+
+		wakeMailed();
+		flushDirty();
+
+		Metrics.selectLoop.record(System.nanoTime() - start);
+	}
+
+	/* Blocks until there is I/O, a task, or the next tick of the timing wheel */
+	private int select() throws IOException {
+		/* More connections wait to be registered, only look at what is ready meanwhile */
+		if (!accepted.isEmpty())
+			return selector.selectNow();
+
+		/* Frames are left over in a full mailbox, come back for them soon */
+		if (!mailed.isEmpty())
+			return selector.select(1);
+
+		if (wheel.isEmpty())
+			return selector.select();
+
+		long wait = wheel.nextTick() - System.nanoTime();
+		if (wait <= 0)
+			return selector.selectNow();
+		return selector.select(Math.max(1, (wait + 999_999) / 1_000_000));
+	}
+
+	/*
+	 * Reads whatever arrived into the user's framer. Returns false when the
+	 * connection must be closed: the peer closed it, or a single line filled the
+	 * whole buffer without a new line.
+	 */
+	private boolean getSocketInput(SocketChannel sc, User u) throws IOException {
+		if (u == null)
+			return false;
+
+		LineFramer framer = u.getFramer();
+
+		/*
+		 * Nothing was read but getSocketInput was still called meaning user must have
+		 * closed the connection
+		 */
+		if (framer.isFull())
+			return false;
+
+		int read = sc.read(framer.buffer(readBuffer));
+		if (read <= 0)
+			return false;
+
+		Metrics.bytesRead.add(read);
+		return true;
+	}
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Reconnect storm test. Connects one probe, then opens every other
+ * connection at once, as clients do after a network blip, and measures how
+ * long until all of them are in a room. A connection that is refused, reset
+ * or told ERROR retries after a random backoff, like a well behaved client.
+ *
+ * Meanwhile the probe sends itself a private message every storm.probeMillis,
+ * well inside any sensible rate limit, timing each round trip, to show whether the storm holds up users that
+ * were already connected.
+ *
+ * Usage: java ReconnectStorm host port, tuned with -Dstorm.* properties.
+ */
+public class ReconnectStorm {
+    private static final int CONNECTIONS = Config.intProperty("storm.connections", 5000);
+    /* Retries wait a random time up to this */
+    private static final int BACKOFF_MILLIS = Config.intProperty("storm.backoffMillis", 500);
+    private static final int PROBE_MILLIS = Config.intProperty("storm.probeMillis", 20);
+    private static final int TIMEOUT_SECONDS = Config.intProperty("storm.timeout", 60);
+    private static final int ROOM_SIZE = Config.intProperty("storm.roomSize", 50);
+
+    private static final byte[] PRIVATE_PREFIX = "PRIVATE probe t".getBytes(ChatServer.charset);
+
+    private final InetSocketAddress server;
+    private final Selector selector = Selector.open();
+    private final Random random = new Random(42);
+
+    private final Histogram probeLatency = new Histogram();
+    private final Histogram readyLatency = new Histogram();
+
+    /* Connections waiting out their backoff */
+    private final ArrayDeque<Connection> retries = new ArrayDeque<>();
+
+    private int ready = 0;
+    private long attempts = 0;
+    private long rejected = 0;
+    private long start;
+
+    private class Connection {
+        final int index;
+        final boolean probe;
+        SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        int okCount = 0;
+        long retryAt;
+
+        Connection(int index, boolean probe) {
+            this.index = index;
+            this.probe = probe;
+        }
+
+        void open() throws IOException {
+            attempts++;
+            okCount = 0;
+            in.clear();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(server))
+                connected();
+            else
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+
+        void connected() throws IOException {
+            channel.register(selector, SelectionKey.OP_READ, this);
+            /* Rooms of ROOM_SIZE, so the JOINED fan-out stays small next to the connects */
+            String nick = probe ? "probe" : "storm" + index;
+            send("/nick " + nick + "\n/join " + (probe ? "probe" : "storm" + index / ROOM_SIZE) + "\n");
+        }
+
+        void send(String line) throws IOException {
+            /* Short lines on an idle socket; the kernel always takes them whole */
+            channel.write(ChatServer.charset.encode(line));
+        }
+
+        /* Closes and schedules a new attempt */
+        void retry() {
+            rejected++;
+            try {
+                channel.close();
+            } catch (IOException ie) {
+                /* Retrying anyway */
+            }
+            retryAt = System.nanoTime() + random.nextInt(Math.max(1, BACKOFF_MILLIS)) * 1_000_000L;
+            retries.add(this);
+        }
+    }
+
+    private ReconnectStorm(InetSocketAddress server) throws IOException {
+        this.server = server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.print("Usage: java ReconnectStorm <host> <port>\n");
+            return;
+        }
+
+        new ReconnectStorm(new InetSocketAddress(args[0], Integer.parseInt(args[1]))).run();
+    }
+
+    private void run() throws IOException {
+        Connection probe = new Connection(-1, true);
+        probe.open();
+        while (probe.okCount < 2) {
+            selector.select(1000);
+            pumpSelected();
+        }
+
+        System.out.printf("storming with %d connections%n", CONNECTIONS);
+        start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Connection c = new Connection(i, false);
+            try {
+                c.open();
+            } catch (IOException ie) {
+                c.retry();
+            }
+        }
+
+        long deadline = start + TIMEOUT_SECONDS * 1_000_000_000L;
+        long nextProbe = System.nanoTime();
+        long nextReport = start + 1_000_000_000L;
+
+        while (ready < CONNECTIONS) {
+            long now = System.nanoTime();
+            if (now - deadline >= 0)
+                break;
+
+            if (now - nextProbe >= 0) {
+                probe.send("/priv probe t" + now + "\n");
+                nextProbe = now + PROBE_MILLIS * 1_000_000L;
+            }
+
+            if (now - nextReport >= 0) {
+                System.out.printf("%5d ms ready %d/%d, %d attempts, %d refused, probe max %.1f ms%n",
+                        (now - start) / 1_000_000, ready, CONNECTIONS, attempts, rejected, probeLatency.getMax() / 1e6);
+                nextReport += 1_000_000_000L;
+            }
+
+            for (Iterator<Connection> it = retries.iterator(); it.hasNext();) {
+                Connection c = it.next();
+                if (now - c.retryAt >= 0) {
+                    it.remove();
+                    try {
+                        c.open();
+                    } catch (IOException ie) {
+                        c.retry();
+                    }
+                }
+            }
+
+            selector.select(Math.max(1, PROBE_MILLIS));
+            pumpSelected();
+        }
+
+        report(System.nanoTime() - start);
+    }
+
+    private void pumpSelected() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection c = (Connection) key.attachment();
+
+            try {
+                if (key.isConnectable()) {
+                    c.channel.finishConnect();
+                    c.connected();
+                } else if (key.isReadable()) {
+                    pump(c);
+                }
+            } catch (IOException ie) {
+                if (c.probe)
+                    throw new IllegalStateException("probe lost: " + ie);
+                c.retry();
+            }
+        }
+    }
+
+    private void pump(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0)
+            throw new IOException("closed by the server");
+
+        long now = System.nanoTime();
+        int end = c.in.position();
+        int lineStart = 0;
+
+        for (int i = 0; i < end; i++) {
+            if (c.in.get(i) != '\n')
+                continue;
+
+            if (!onLine(c, lineStart, i, now))
+                return;
+            lineStart = i + 1;
+        }
+
+        c.in.limit(end).position(lineStart);
+        c.in.compact();
+    }
+
+    /* Returns false once the connection is given up on */
+    private boolean onLine(Connection c, int from, int to, long now) {
+        ByteBuffer in = c.in;
+
+        if (to - from == 5 && in.get(from) == 'E' && !c.probe) {
+            c.retry();
+            return false;
+        }
+
+        if (to - from == 2 && in.get(from) == 'O' && in.get(from + 1) == 'K') {
+            if (++c.okCount == 2 && !c.probe) {
+                ready++;
+                readyLatency.record(now - start);
+            }
+            return true;
+        }
+
+        if (c.probe && to - from > PRIVATE_PREFIX.length && in.get(from) == 'P') {
+            long sent = 0;
+            for (int i = from + PRIVATE_PREFIX.length; i < to; i++)
+                sent = sent * 10 + (in.get(i) - '0');
+            probeLatency.record(now - sent);
+        }
+        return true;
+    }
+
+    private void report(long elapsed) {
+        System.out.println();
+        System.out.printf("%d of %d connections ready in %d ms, %d attempts, %d refused or reset%n", ready,
+                CONNECTIONS, elapsed / 1_000_000, attempts, rejected);
+        System.out.printf("ready after    p50 %.1f ms  p99 %.1f ms  max %.1f ms%n", readyLatency.valueAtPercentile(50) / 1e6,
+                readyLatency.valueAtPercentile(99) / 1e6, readyLatency.getMax() / 1e6);
+        System.out.printf("probe rtt      p50 %.3f ms  p99 %.3f ms  max %.3f ms%n", probeLatency.valueAtPercentile(50) / 1e6,
+                probeLatency.valueAtPercentile(99) / 1e6, probeLatency.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A parsed client command, whichever protocol it came in. Protocol runs the
+ * state machine against this, so text lines and binary frames share it.
+ */
+public interface Request {
+    CommandParser.Command getCommand();
+
+    /**
+     * Checks for exactly one non-empty argument
+     *
+     * @return if the command is "/command argument"
+     */
+    boolean hasSingleArgument();
+
+    /**
+     * Checks for an argument followed by free text, which may be empty
+     *
+     * @return if the command is "/command argument text"
+     */
+    boolean hasArgumentAndText();
+
+    String argument();
+
+    /**
+     * Gets everything after the first argument
+     *
+     * @return the remaining text
+     */
+    String rest();
+
+    /**
+     * Gets the text of a message
+     *
+     * @return the text
+     */
+    String text();
+
+    /**
+     * Gets the raw UTF-8 text of a MESSAGE, or of a PRIV after its argument,
+     * when the protocol carried it as bytes that can be forwarded as they are
+     *
+     * @return the bytes, or null to use text() or rest()
+     */
+    ByteBuffer payload();
+}
@@ -1,18 +1,50 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Room {
-    private static Map<String, Room> rooms = new HashMap<>();
+    private static final User[] EMPTY = new User[0];
 
-    private String name;
-    private Set<User> users = new HashSet<>();
+    private static Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    /* One thread at a time trims histories back under the budget, resuming where the last one stopped */
+    private static final AtomicBoolean trimming = new AtomicBoolean();
+    private static Iterator<Room> trimCursor = rooms.values().iterator();
+
+    /* Held from creation until the room closes, its bytes shared with every journal record for the room */
+    private final Name name;
+
+    /*
+     * Copy-on-write member snapshot. Joins and leaves replace the array under
+     * the room lock; broadcasts read it once and never lock.
+     */
+    private volatile User[] users = EMPTY;
+
+    /*
+     * Set under the lock, and the history's, when the last member leaves; a
+     * closed room never takes members or messages again
+     */
+    private boolean closed = false;
+
+    /*
+     * Recent MESSAGE frames. Its lock also covers reading the member snapshot
+     * when a message is recorded, and publishing a new one on join, so every
+     * message reaches a newcomer exactly once: replayed or live.
+     */
+    private final RoomHistory history = new RoomHistory();
+
+    /* Messages into the room, shared by every member's thread; null when rooms are not limited */
+    private final TokenBucket rateLimit = RateLimits.newRoomBucket();
 
     public Room(String name) {
-        this.name = name;
-        rooms.put(name, this);
+        this.name = NameIds.acquire(name);
     }
 
     /**
@@ -22,10 +54,54 @@ public class Room {
      * @return the room
      */
     public static Room getByName(String name) {
-        if (!rooms.containsKey(name)) {
-            rooms.put(name, new Room(name));
+        return rooms.computeIfAbsent(name, Room::new);
+    }
+
+    /**
+     * Adds an user to the named room, creating it if needed. A room found just
+     * as its last member leaves is closed, so the lookup is retried and gets
+     * its replacement.
+     *
+     * @param name of the room
+     * @param user to add
+     * @return the room joined
+     */
+    public static Room join(String name, User user) throws IOException {
+        while (true) {
+            Room room = getByName(name);
+            if (room.addUser(user))
+                return room;
         }
-        return rooms.get(name);
+    }
+
+    /**
+     * Gets the number of rooms with at least one member
+     *
+     * @return the room count
+     */
+    public static int count() {
+        return rooms.size();
+    }
+
+    public String getName() {
+        return name.getText();
+    }
+
+    public Name getInternedName() {
+        return name;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Gets the current members
+     *
+     * @return a snapshot, not to be modified
+     */
+    public User[] getUsers() {
+        return users;
     }
 
     /**
@@ -34,40 +110,306 @@ public class Room {
      * @param user to remove
      */
     public void removeUser(User user) throws IOException {
-        users.remove(user);
-        if (users.size() == 0) {
-            rooms.remove(this.name);
-        } else {
-            sendLeftMessage(user.getName());
+        User[] remaining;
+
+        synchronized (this) {
+            User[] current = users;
+            int index = indexOf(current, user);
+            if (index < 0)
+                return;
+
+            remaining = new User[current.length - 1];
+            System.arraycopy(current, 0, remaining, 0, index);
+            System.arraycopy(current, index + 1, remaining, index, remaining.length - index);
+            users = remaining;
+
+            /* Journaled history outlives the members, until the budget trims it away */
+            if (remaining.length == 0 && !(Journal.isEnabled() && history.size() > 0))
+                close();
+        }
+
+        broadcast(remaining, MessageType.LEFT, user.getInternedName());
+        Cluster.forward(getName(), MessageType.LEFT, user.getName());
+    }
+
+    /**
+     * Adds an user to the room, telling the members already in it. The
+     * newcomer first gets the room history.
+     *
+     * @param user to add
+     * @return false if the room was closed meanwhile and must be looked up again
+     */
+    public boolean addUser(User user) throws IOException {
+        User[] previous;
+
+        synchronized (this) {
+            if (closed)
+                return false;
+
+            previous = users;
+            if (indexOf(previous, user) >= 0)
+                return true;
+
+            User[] joined = Arrays.copyOf(previous, previous.length + 1);
+            joined[previous.length] = user;
+
+            synchronized (history) {
+                users = joined;
+                history.replayTo(user);
+            }
+        }
+
+        broadcast(previous, MessageType.JOINED, user.getInternedName());
+        Cluster.forward(getName(), MessageType.JOINED, user.getName());
+        return true;
+    }
+
+    /* Closes a room that has neither members nor history left */
+    private synchronized void closeIfIdle() {
+        if (closed || users.length > 0 || history.size() > 0)
+            return;
+
+        close();
+    }
+
+    /* Under the lock: takes the room out of the registry for good and lets go of its name and history */
+    private void close() {
+        synchronized (history) {
+            closed = true;
+            history.clear();
+        }
+        rooms.remove(getName(), this);
+        NameIds.release(name);
+    }
+
+    /**
+     * Puts recovered messages back in a room's history
+     *
+     * @param name     of the room
+     * @param senders  nickname of each message's sender, oldest first
+     * @param messages the text of each message
+     */
+    public static void restoreHistory(String name, List<String> senders, List<String> messages) {
+        Room room = getByName(name);
+
+        for (int i = 0; i < senders.size(); i++) {
+            Name sender = NameIds.acquire(senders.get(i));
+            room.history.add(MessagingUtils.encode(MessageType.MESSAGE, sender, messages.get(i)),
+                    BinaryCodec.encode(MessageType.MESSAGE, sender, messages.get(i)), sender);
+            NameIds.release(sender);
+        }
+
+        if (RoomHistory.totalBytes() > Config.HISTORY_MAX_BYTES)
+            trimHistories();
+    }
+
+    /**
+     * Gets the history of every room, to hand over to another server
+     *
+     * @return the text MESSAGE frames of each room with any, oldest first
+     */
+    public static Map<String, List<ByteBuffer>> histories() {
+        Map<String, List<ByteBuffer>> histories = new HashMap<>();
+
+        for (Room room : rooms.values()) {
+            List<ByteBuffer> frames = room.history.frames();
+            if (!frames.isEmpty())
+                histories.put(room.getName(), frames);
+        }
+
+        return histories;
+    }
+
+    private static int indexOf(User[] members, User user) {
+        for (int i = 0; i < members.length; i++)
+            if (members[i] == user)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Hands an event forwarded by another cluster node to the members here.
+     * Messages go in the history as well, if the room is open on this node.
+     * The names are normally held by the cluster directory already.
+     *
+     * @param name of the room
+     * @param type of the event
+     * @param data its arguments, as for Cluster.forward
+     */
+    public static void deliver(String name, MessageType type, String... data) {
+        Room room = rooms.get(name);
+        if (room == null)
+            return;
+
+        Name subject = NameIds.acquire(data[0]);
+        try {
+            switch (type) {
+                case MESSAGE:
+                    room.receive(subject, data[1]);
+                    break;
+                case NEWNICK: {
+                    Name newName = NameIds.acquire(data[1]);
+                    broadcast(room.users, type, subject, newName);
+                    NameIds.release(newName);
+                    break;
+                }
+                default:
+                    broadcast(room.users, type, subject);
+            }
+        } finally {
+            NameIds.release(subject);
+        }
+    }
+
+    public void sendMessage(Name sender, String message) throws IOException {
+        Journal.append(MessageType.MESSAGE, getName(), sender.getText(), message);
+        Cluster.forward(getName(), MessageType.MESSAGE, sender.getText(), message);
+        receive(sender, message);
+    }
+
+    /* Sends a message to the members on this node and keeps it, whichever node it was said on */
+    private void receive(Name sender, String message) {
+        if (!history.isEnabled()) {
+            broadcast(users, null, null, MessageType.MESSAGE, sender, null, message);
+            return;
+        }
+
+        /* Built up front once there are binary clients; until then the history makes it if one joins */
+        ByteBuffer text = MessagingUtils.encode(MessageType.MESSAGE, sender, message);
+        ByteBuffer binary = BinaryCodec.inUse() ? BinaryCodec.encode(MessageType.MESSAGE, sender, message) : null;
+        record(text, binary, sender, message);
+    }
+
+    /**
+     * Sends a message that arrived as raw UTF-8 from a binary client. Both
+     * encodings are built from the bytes, which are never decoded unless the
+     * journal or the cluster needs the text.
+     *
+     * @param sender  nickname of the sender
+     * @param payload the text
+     */
+    public void sendMessage(Name sender, ByteBuffer payload) throws IOException {
+        if (Journal.isEnabled() || Cluster.isEnabled()) {
+            String message = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+            Journal.append(MessageType.MESSAGE, getName(), sender.getText(), message);
+            Cluster.forward(getName(), MessageType.MESSAGE, sender.getText(), message);
         }
+
+        ByteBuffer text = BinaryCodec.textMessage(MessageType.MESSAGE, sender, payload);
+        ByteBuffer binary = BinaryCodec.message(MessageType.MESSAGE, sender, payload);
+
+        if (!history.isEnabled())
+            broadcast(users, text, binary, MessageType.MESSAGE, sender, null, null);
+        else
+            record(text, binary, sender, null);
     }
 
-    public void addUser(User user) throws IOException {
-        sendJoinedMessage(user.getName());
-        users.add(user);
+    /* Keeps a message in the history and sends it to exactly the members it was recorded for */
+    private void record(ByteBuffer text, ByteBuffer binary, Name sender, String message) {
+        User[] members;
+
+        synchronized (history) {
+            /* Closed since it was looked up, as by a message from another node just as the last member here left */
+            if (closed)
+                return;
+            history.add(text, binary, sender);
+            members = users;
+        }
+
+        broadcast(members, text, binary, MessageType.MESSAGE, sender, null, message);
+
+        if (RoomHistory.totalBytes() > Config.HISTORY_MAX_BYTES)
+            trimHistories();
     }
 
-    public void sendMessage(String username, String message) throws IOException {
-        broadcast(MessageType.MESSAGE, username, message);
+    /*
+     * Brings the histories back under the shared budget, taking the oldest
+     * frame of each room in turn so the idle rooms pay as well as the busy
+     * one that went over
+     */
+    private static void trimHistories() {
+        if (!trimming.compareAndSet(false, true))
+            return;
+
+        try {
+            boolean fullPass = false;
+            boolean evicted = false;
+
+            while (RoomHistory.totalBytes() > Config.HISTORY_MAX_BYTES) {
+                if (!trimCursor.hasNext()) {
+                    /* A whole pass over the rooms found nothing to drop */
+                    if (fullPass && !evicted)
+                        break;
+                    fullPass = true;
+                    evicted = false;
+                    trimCursor = rooms.values().iterator();
+                    continue;
+                }
+
+                Room room = trimCursor.next();
+                if (room.history.dropOldest()) {
+                    evicted = true;
+                    Metrics.historyMemoryEvictions.increment();
+                    room.closeIfIdle();
+                }
+            }
+        } finally {
+            trimming.set(false);
+        }
     }
 
-    private void sendJoinedMessage(String name) throws IOException {
-        broadcast(MessageType.JOINED, name);
+    public void notifyChangedNickname(Name oldName, Name newName) throws IOException {
+        broadcast(users, MessageType.NEWNICK, oldName, newName);
+        Cluster.forward(getName(), MessageType.NEWNICK, oldName.getText(), newName.getText());
     }
 
-    private void sendLeftMessage(String name) throws IOException {
-        broadcast(MessageType.LEFT, name);
+    private static void broadcast(User[] members, MessageType type, Name name) {
+        broadcast(members, null, null, type, name, null, null);
     }
 
-    public void notifyChangedNickname(String oldName, String newName) throws IOException {
-        broadcast(MessageType.NEWNICK, oldName, newName);
+    private static void broadcast(User[] members, MessageType type, Name oldName, Name newName) {
+        broadcast(members, null, null, type, oldName, newName, null);
     }
 
-    private void broadcast(MessageType type, String... data) throws IOException {
-        for (User user : users) {
-            if (type == MessageType.NEWNICK && user.getName() == data[1])
+    /*
+     * Sends to one member snapshot without taking the room lock; members may
+     * come and go meanwhile without disturbing the loop. Each protocol's frame
+     * is encoded at most once, unless the caller already did, and every member
+     * speaking it shares its bytes. The same goes for the compressed frame.
+     * The new name is only set for NEWNICK, the message only for MESSAGE.
+     */
+    private static void broadcast(User[] members, ByteBuffer text, ByteBuffer binary, MessageType type, Name name,
+            Name newName, String message) {
+        if (members.length == 0)
+            return;
+
+        long start = System.nanoTime();
+        ByteBuffer compressed = null;
+
+        for (User user : members) {
+            if (type == MessageType.NEWNICK && user.getInternedName() == newName)
                 continue;
-            MessagingUtils.sendMessage(user, type, data);
+
+            if (user.isBinary()) {
+                if (binary == null)
+                    binary = message != null ? BinaryCodec.encode(type, name, message)
+                            : BinaryCodec.encode(type, name, newName);
+                if (user.isCompressed()) {
+                    if (compressed == null)
+                        compressed = FrameCompressor.compress(binary);
+                    MessagingUtils.sendFrame(user, compressed);
+                } else {
+                    MessagingUtils.sendFrame(user, binary);
+                }
+            } else {
+                if (text == null)
+                    text = message != null ? MessagingUtils.encode(type, name, message)
+                            : MessagingUtils.encode(type, name, newName);
+                MessagingUtils.sendFrame(user, text);
+            }
         }
+
+        Metrics.broadcastFanout.record(members.length);
+        Metrics.broadcastDuration.record(System.nanoTime() - start);
     }
 }
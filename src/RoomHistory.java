@@ -0,0 +1,229 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last messages broadcast in one room, kept as the encoded frames the
+ * members got, so replaying them to a newcomer needs no encoding. Binary
+ * frames are kept alongside once any client speaks the binary protocol;
+ * messages from before that get theirs built from the text line the first
+ * time a binary client needs them. Clients that negotiated compression get
+ * the binary frames packed into HISTORY frames and compressed together,
+ * built once and reused until the history changes. Bounded per room by
+ * depth, and across every room by a shared byte budget that the room
+ * registry enforces by evicting oldest frames. Each kept message holds its
+ * sender's name, so the id in its binary frame still means the sender when
+ * it is replayed.
+ */
+public class RoomHistory {
+    /* Footprint of every history, counted by frame capacity */
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final AtomicLong totalFrames = new AtomicLong();
+
+    /* Circular, oldest frame at head; binary holds the same messages, or null until one is needed */
+    private final ByteBuffer[] ring;
+    private final ByteBuffer[] binary;
+    private final Name[] senders;
+    private int head = 0;
+    private int count = 0;
+
+    /* HISTORY frames for compressing clients, null until one joins after a change */
+    private List<ByteBuffer> packed = null;
+    private long packedBytes = 0;
+
+    public RoomHistory(int depth) {
+        this.ring = new ByteBuffer[Math.max(0, depth)];
+        this.binary = new ByteBuffer[ring.length];
+        this.senders = new Name[ring.length];
+    }
+
+    public RoomHistory() {
+        this(Config.HISTORY_DEPTH);
+    }
+
+    /**
+     * Checks if anything is kept at all
+     *
+     * @return false when the depth is 0
+     */
+    public boolean isEnabled() {
+        return ring.length > 0;
+    }
+
+    /**
+     * Keeps a frame, dropping the oldest one if the room is at its depth
+     *
+     * @param frame       read-only encoded line, shared with the broadcast
+     * @param binaryFrame the same message in the binary protocol, or null
+     * @param sender      of the message, held by the caller
+     */
+    public synchronized void add(ByteBuffer frame, ByteBuffer binaryFrame, Name sender) {
+        if (ring.length == 0)
+            return;
+
+        if (count == ring.length) {
+            dropOldest();
+            Metrics.historyDepthEvictions.increment();
+        }
+
+        unpack();
+
+        int tail = (head + count) % ring.length;
+        ring[tail] = frame;
+        binary[tail] = binaryFrame;
+        senders[tail] = NameIds.acquire(sender);
+        count++;
+        totalBytes.addAndGet(footprint(frame, binaryFrame));
+        totalFrames.incrementAndGet();
+    }
+
+    /**
+     * Discards the oldest frame
+     *
+     * @return false if there was none
+     */
+    public synchronized boolean dropOldest() {
+        if (count == 0)
+            return false;
+
+        unpack();
+
+        ByteBuffer frame = ring[head];
+        ByteBuffer binaryFrame = binary[head];
+        ring[head] = null;
+        binary[head] = null;
+        NameIds.release(senders[head]);
+        senders[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        totalBytes.addAndGet(-footprint(frame, binaryFrame));
+        totalFrames.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queues every kept frame to a user, oldest first
+     *
+     * @param user to replay to
+     */
+    public synchronized void replayTo(User user) {
+        if (user.isCompressed() && count > 0) {
+            for (ByteBuffer frame : pack())
+                MessagingUtils.sendFrame(user, frame);
+            Metrics.historyReplayed.add(count);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % ring.length;
+            MessagingUtils.sendFrame(user, user.isBinary() ? binaryAt(slot) : ring[slot]);
+        }
+
+        Metrics.historyReplayed.add(count);
+    }
+
+    /* The binary frame of a kept message, built from its text line if it was kept before there were binary clients */
+    private ByteBuffer binaryAt(int slot) {
+        if (binary[slot] == null) {
+            binary[slot] = BinaryCodec.fromText(MessageType.MESSAGE, senders[slot], ring[slot]);
+            totalBytes.addAndGet(binary[slot].capacity());
+        }
+
+        return binary[slot];
+    }
+
+    /**
+     * Gets the kept text frames
+     *
+     * @return views of them, oldest first
+     */
+    public synchronized List<ByteBuffer> frames() {
+        List<ByteBuffer> frames = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++)
+            frames.add(ring[(head + i) % ring.length].duplicate());
+
+        return frames;
+    }
+
+    /* Packs the binary frames into as few HISTORY frames as fit, each compressed if that helps */
+    private List<ByteBuffer> pack() {
+        if (packed != null)
+            return packed;
+
+        packed = new ArrayList<>();
+        ByteBuffer run = null;
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = binaryAt((head + i) % ring.length);
+            if (run != null && run.remaining() < frame.remaining())
+                run = seal(run);
+
+            /* Only a frame close to the largest size doesn't fit in an empty run, it goes on its own */
+            if (frame.remaining() > BinaryCodec.MAX_FRAME - 1) {
+                packed.add(frame);
+                continue;
+            }
+
+            if (run == null)
+                run = ByteBuffer.allocate(2 + BinaryCodec.MAX_FRAME).putShort((short) 0)
+                        .put((byte) MessageType.HISTORY.ordinal());
+            run.put(frame.duplicate());
+        }
+        if (run != null)
+            seal(run);
+
+        for (ByteBuffer frame : packed)
+            packedBytes += frame.capacity();
+        totalBytes.addAndGet(packedBytes);
+        return packed;
+    }
+
+    /* Finishes a HISTORY frame and starts none */
+    private ByteBuffer seal(ByteBuffer run) {
+        run.putShort(0, (short) (run.position() - 2)).flip();
+        ByteBuffer frame = ByteBuffer.allocate(run.remaining()).put(run).flip().asReadOnlyBuffer();
+        packed.add(FrameCompressor.compress(frame));
+        return null;
+    }
+
+    /* Drops the packed frames, which no longer match the history */
+    private void unpack() {
+        if (packed == null)
+            return;
+
+        totalBytes.addAndGet(-packedBytes);
+        packed = null;
+        packedBytes = 0;
+    }
+
+    private static long footprint(ByteBuffer frame, ByteBuffer binaryFrame) {
+        return frame.capacity() + (binaryFrame == null ? 0 : binaryFrame.capacity());
+    }
+
+    /**
+     * Discards everything, giving the bytes back to the budget
+     */
+    public synchronized void clear() {
+        while (dropOldest())
+            ;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Gets the bytes held by every room history
+     *
+     * @return the footprint
+     */
+    public static long totalBytes() {
+        return totalBytes.get();
+    }
+
+    public static long totalFrames() {
+        return totalFrames.get();
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * What to do with a user whose outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+    /* Discard the oldest queued frames to make room */
+    DROP_OLDEST,
+    /* Close the connection */
+    DISCONNECT,
+    /* Merge queued frames into one buffer, dropping the oldest once the byte limit is hit */
+    COALESCE
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster bus over a full mesh of TCP connections. Every node dials every
+ * other one and only writes on the connections it dialed, so each pair of
+ * nodes talks over two one-way streams. A writer thread per peer drains that
+ * peer's bounded queue, flushing once per batch; a reader thread per inbound
+ * connection hands messages to the listener.
+ *
+ * On the wire a message is an int length and its bytes. A connection opens
+ * with the number of the dialing node; idle ones carry a zero length every
+ * second so a dead peer is noticed without traffic: a reader that hears
+ * nothing for SILENCE_MILLIS drops the peer's link, which redials it.
+ */
+public class TcpMeshBus implements ClusterBus {
+    private static final int HEARTBEAT_MILLIS = 1000;
+    /* Three heartbeats missed in a row */
+    private static final int SILENCE_MILLIS = 3 * HEARTBEAT_MILLIS;
+    private static final int RETRY_MILLIS = 1000;
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private final List<InetSocketAddress> nodes;
+    private final int self;
+    private final Link[] links;
+    private Listener listener;
+
+    /* Outbound half of the connection to one peer */
+    private final class Link implements Runnable {
+        private final int node;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(Config.CLUSTER_QUEUE);
+        private volatile boolean up = false;
+        private volatile Socket socket;
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(nodes.get(node), RETRY_MILLIS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(s.getOutputStream(), STREAM_BUFFER));
+                    out.writeInt(self);
+                    out.flush();
+
+                    /* Anything queued while the peer was down is stale */
+                    queue.clear();
+                    up = true;
+                    System.out.println("Cluster node " + node + " up at " + nodes.get(node));
+                    listener.onNodeUp(node);
+                    pump(out);
+                } catch (IOException ie) {
+                    /* Down, or not up yet */
+                } catch (InterruptedException ie) {
+                    return;
+                } finally {
+                    socket = null;
+                    if (up) {
+                        up = false;
+                        System.out.println("Cluster node " + node + " down");
+                        listener.onNodeDown(node);
+                    }
+                }
+
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+
+        private void pump(DataOutputStream out) throws IOException, InterruptedException {
+            while (true) {
+                byte[] message = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    out.writeInt(0);
+                    out.flush();
+                    continue;
+                }
+
+                /* Everything already waiting goes out in the same flush */
+                do {
+                    out.writeInt(message.length);
+                    out.write(message);
+                } while ((message = queue.poll()) != null);
+                out.flush();
+            }
+        }
+
+        /* Drops the connection, the writer reconnects on its own */
+        void reset() {
+            Socket s = socket;
+            if (s == null)
+                return;
+
+            try {
+                s.close();
+            } catch (IOException ie) {
+                /* Closed anyway */
+            }
+        }
+    }
+
+    public TcpMeshBus(List<InetSocketAddress> nodes, int self) {
+        this.nodes = nodes;
+        this.self = self;
+        this.links = new Link[nodes.size()];
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(nodes.get(self));
+
+        Thread acceptor = new Thread(() -> accept(server), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (int i = 0; i < links.length; i++) {
+            if (i == self)
+                continue;
+
+            links[i] = new Link(i);
+            Thread writer = new Thread(links[i], "cluster-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (true) {
+            try {
+                Socket s = server.accept();
+                Thread reader = new Thread(() -> read(s), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException ie) {
+                System.err.println("Cluster accept failed: " + ie);
+            }
+        }
+    }
+
+    private void read(Socket s) {
+        int from = -1;
+
+        try (s) {
+            s.setSoTimeout(SILENCE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), STREAM_BUFFER));
+            from = in.readInt();
+            if (from < 0 || from >= links.length || from == self)
+                throw new IOException("unknown node " + from);
+
+            while (true) {
+                int length = in.readInt();
+                if (length == 0)
+                    continue;
+
+                byte[] message = new byte[length];
+                in.readFully(message);
+                listener.onMessage(from, message);
+            }
+        } catch (IOException ie) {
+            /* A peer that stopped talking, or went silent, is restarting or gone; start over with it */
+            if (from >= 0 && from < links.length && links[from] != null)
+                links[from].reset();
+        }
+    }
+
+    @Override
+    public int self() {
+        return self;
+    }
+
+    @Override
+    public int size() {
+        return links.length;
+    }
+
+    @Override
+    public boolean isUp(int node) {
+        return node == self || (links[node] != null && links[node].up);
+    }
+
+    @Override
+    public boolean send(int node, byte[] message) {
+        Link link = links[node];
+        return link != null && link.up && link.queue.offer(message);
+    }
+}
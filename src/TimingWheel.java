@@ -0,0 +1,154 @@
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: timers hash by deadline into a ring of slots, one
+ * slot per tick, each slot a doubly-linked list. Scheduling and cancelling
+ * are O(1) and allocate nothing; advancing visits only the slots whose tick
+ * passed, and a timer more than one turn away just stays in its slot until
+ * the turn that holds its deadline.
+ *
+ * Not thread-safe: meant to be owned by one event loop, or locked around.
+ */
+public class TimingWheel {
+    /**
+     * A timer, reused for as long as its owner lives. Scheduled in at most one
+     * wheel at a time.
+     */
+    public static final class Timer {
+        private final Object attachment;
+        private Timer prev;
+        private Timer next;
+        private long deadlineTick;
+        private boolean scheduled = false;
+
+        public Timer(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public Object attachment() {
+            return attachment;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final long tickNanos;
+    private final long origin;
+    private final Timer[] slots;
+    private final int mask;
+
+    /* Last tick advanced past */
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * @param tickNanos resolution; deadlines are rounded up to a tick
+     * @param slots     ring size, rounded up to a power of two
+     * @param now       start of tick 0, by System.nanoTime()
+     */
+    public TimingWheel(long tickNanos, int slots, long now) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.tickNanos = Math.max(1, tickNanos);
+        this.origin = now;
+        this.slots = new Timer[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules a timer, moving it if it already is
+     *
+     * @param timer    to schedule
+     * @param deadline by System.nanoTime(); a past one fires on the next tick
+     */
+    public void schedule(Timer timer, long deadline) {
+        cancel(timer);
+
+        long tick = Math.max(currentTick + 1, (deadline - origin + tickNanos - 1) / tickNanos);
+        int slot = (int) (tick & mask);
+
+        timer.deadlineTick = tick;
+        timer.scheduled = true;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    /**
+     * Unschedules a timer; does nothing if it isn't scheduled
+     *
+     * @param timer to cancel
+     */
+    public void cancel(Timer timer) {
+        if (!timer.scheduled)
+            return;
+
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[(int) (timer.deadlineTick & mask)] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = null;
+        timer.next = null;
+        timer.scheduled = false;
+        size--;
+    }
+
+    /**
+     * Fires every timer whose deadline has passed. A fired timer is no longer
+     * scheduled; the callback may schedule it again.
+     *
+     * @param now     by System.nanoTime()
+     * @param expired called for each timer fired
+     * @return the number of timers fired
+     */
+    public int advance(long now, Consumer<Timer> expired) {
+        long target = (now - origin) / tickNanos;
+        if (target <= currentTick)
+            return 0;
+
+        /* After a long stall one full turn covers every slot */
+        long from = Math.max(currentTick, target - slots.length);
+        int fired = 0;
+
+        for (long tick = from + 1; tick <= target; tick++) {
+            currentTick = tick;
+            Timer timer = slots[(int) (tick & mask)];
+
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadlineTick <= target) {
+                    cancel(timer);
+                    expired.accept(timer);
+                    fired++;
+                }
+                timer = next;
+            }
+        }
+
+        return fired;
+    }
+
+    /**
+     * Gets when the next tick is due, to bound a select
+     *
+     * @return by System.nanoTime()
+     */
+    public long nextTick() {
+        return origin + (currentTick + 1) * tickNanos;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
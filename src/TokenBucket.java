@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free, allocation-free token bucket. It holds a single timestamp: the
+ * time at which the bucket would be full again (the generic cell rate
+ * algorithm form of a token bucket). Taking a token moves it one interval
+ * forward; the bucket is empty when it is more than a burst ahead of now.
+ * Safe to share between threads.
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+
+    /* When every token taken so far would have been refilled */
+    private final AtomicLong full = new AtomicLong(Long.MIN_VALUE / 2);
+
+    /**
+     * @param perSecond tokens refilled per second
+     * @param burst     tokens the bucket holds
+     */
+    public TokenBucket(int perSecond, int burst) {
+        this.intervalNanos = 1_000_000_000L / Math.max(1, perSecond);
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+    }
+
+    /**
+     * Takes a token if there is one
+     *
+     * @param now by System.nanoTime()
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long current = full.get();
+            long from = Math.max(current, now);
+            if (from - now > toleranceNanos)
+                return false;
+            if (full.compareAndSet(current, from + intervalNanos))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back a token taken by a command that was refused for another
+     * reason
+     */
+    public void release() {
+        full.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Takes a token, going into debt if there is none
+     *
+     * @param now by System.nanoTime()
+     * @return how long until the next token, 0 if one is already there
+     */
+    public long acquire(long now) {
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (full.compareAndSet(current, next))
+                return Math.max(0, next - toleranceNanos - now);
+        }
+    }
+}
@@ -1,34 +1,65 @@
 import java.io.IOException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class User {
-	private static Map<SocketChannel, User> users = new HashMap<>();
-	private static Map<String, User> names = new HashMap<>();
+	/* Every connected user, for enumeration only; the hot path finds users through their key */
+	private static Set<User> users = ConcurrentHashMap.newKeySet();
 
-	private String name;
+	/* Read by other threads when they broadcast to this user's room; the Name also records who holds it */
+	private volatile Name name;
+	private volatile boolean binary = false;
+	private volatile boolean compressed = false;
 	private SocketChannel userChannel;
+	private EventLoop eventLoop;
+	private SelectionKey key;
 	private Room currentRoom;
 	private Protocol.State currentState;
 
-	private ByteBuffer buffer = ByteBuffer.allocate(16384);
+	/* Holds no buffer unless a partial line is waiting */
+	private LineFramer framer = new LineFramer();
 
-	private User(SocketChannel userChannel) {
+	/* Frames waiting for the channel to become writable */
+	private final OutboundQueue outbound = new OutboundQueue();
+
+	/* Activity by System.nanoTime(), checked when the connection's timer fires */
+	private final long connectedAt = System.nanoTime();
+	private volatile long lastReadAt = connectedAt;
+
+	/* When the outbound backlog last stopped moving, 0 while nothing is stuck */
+	private volatile long stalledSince = 0;
+
+	/* Input is left unread until then after a rate limit delay, 0 while reading */
+	private volatile long pausedUntil = 0;
+
+	/* Commands sent, null when users are not limited */
+	private final TokenBucket rateLimit = RateLimits.newUserBucket();
+
+	/* The connection's one timer, in its event loop's timing wheel */
+	private final TimingWheel.Timer timer = new TimingWheel.Timer(this);
+
+	private User(SocketChannel userChannel, SelectionKey key, EventLoop eventLoop) {
 		this.userChannel = userChannel;
+		this.key = key;
+		this.eventLoop = eventLoop;
 		this.currentState = Protocol.State.INIT;
 		this.name = null;
 	}
 
 	/**
-	 * Get an user instance from its channel
+	 * Gets every connected user
 	 *
-	 * @param channel to search
-	 * @return the user
+	 * @return a live, read-only view
 	 */
-	public static User getByChannel(SocketChannel channel) {
-		return users.get(channel);
+	public static Collection<User> getAll() {
+		return Collections.unmodifiableSet(users);
 	}
 
 	/**
@@ -38,15 +69,25 @@ public class User {
 	 * @return the user
 	 */
 	public static User getByName(String name) {
-		return names.get(name);
+		Name interned = NameIds.find(name);
+		return interned == null ? null : interned.getOwner();
 	}
 
 	/**
 	 * Create a new user.
+	 *
+	 * @param userChannel the connection
+	 * @param key         its registration with a reactor, null if unregistered;
+	 *                    the user becomes its attachment
+	 * @param eventLoop   the owner of the channel, null if the caller owns it
+	 * @return the user
 	 */
-	public static void create(SocketChannel userChannel) throws IOException {
-		User u = new User(userChannel);
-		users.put(userChannel, u);
+	public static User create(SocketChannel userChannel, SelectionKey key, EventLoop eventLoop) {
+		User u = new User(userChannel, key, eventLoop);
+		users.add(u);
+		if (key != null)
+			key.attach(u);
+		return u;
 	}
 
 	/**
@@ -55,16 +96,139 @@ public class User {
 	 * @return the user name
 	 */
 	public String getName() {
+		Name name = this.name;
+		return name == null ? null : name.getText();
+	}
+
+	/**
+	 * Gets the user name as interned
+	 *
+	 * @return the name, null before the first /nick
+	 */
+	public Name getInternedName() {
 		return this.name;
 	}
 
 	/**
-	 * Gets the user buffer
+	 * Checks which protocol the user speaks
+	 *
+	 * @return true for the binary protocol, false for text
+	 */
+	public boolean isBinary() {
+		return this.binary;
+	}
+
+	/**
+	 * Switches the user to the binary protocol, once negotiated
+	 */
+	public void setBinary() {
+		this.binary = true;
+		BinaryCodec.negotiated();
+	}
+
+	/**
+	 * Checks if the user takes compressed binary frames
+	 *
+	 * @return true if the user negotiated compression
+	 */
+	public boolean isCompressed() {
+		return this.compressed;
+	}
+
+	/**
+	 * Lets large binary frames to this user go out compressed
+	 */
+	public void setCompressed() {
+		this.compressed = true;
+		FrameCompressor.negotiated();
+	}
+
+	/**
+	 * Gets the framer holding the user's unparsed input
+	 *
+	 * @return the user framer
+	 */
+	public LineFramer getFramer() {
+		return this.framer;
+	}
+
+	/**
+	 * Gets the event loop that owns this user's channel
+	 *
+	 * @return the owner
+	 */
+	public EventLoop getEventLoop() {
+		return this.eventLoop;
+	}
+
+	/**
+	 * Gets the frames waiting to be written
+	 *
+	 * @return the outbound queue
+	 */
+	public OutboundQueue getOutbound() {
+		return this.outbound;
+	}
+
+	/**
+	 * Gets the connection's timeout timer
+	 *
+	 * @return the timer, attached to this user
+	 */
+	public TimingWheel.Timer getTimer() {
+		return this.timer;
+	}
+
+	public long getConnectedAt() {
+		return this.connectedAt;
+	}
+
+	public long getLastReadAt() {
+		return this.lastReadAt;
+	}
+
+	/**
+	 * Records that input arrived
+	 *
+	 * @param now by System.nanoTime()
+	 */
+	public void setLastReadAt(long now) {
+		this.lastReadAt = now;
+	}
+
+	public long getPausedUntil() {
+		return this.pausedUntil;
+	}
+
+	public void setPausedUntil(long until) {
+		this.pausedUntil = until;
+	}
+
+	public TokenBucket getRateLimit() {
+		return this.rateLimit;
+	}
+
+	/**
+	 * Checks if everything queued so far is written. Blocking writers mark
+	 * the user stalled before taking frames off the queue.
 	 *
-	 * @return the user buffer
+	 * @return if nothing is queued or being written
 	 */
-	public ByteBuffer getBuffer() {
-		return this.buffer;
+	public boolean isFlushed() {
+		return outbound.isEmpty() && stalledSince == 0;
+	}
+
+	public long getStalledSince() {
+		return this.stalledSince;
+	}
+
+	/**
+	 * Records that output is backed up, or 0 once it drained
+	 *
+	 * @param since by System.nanoTime()
+	 */
+	public void setStalledSince(long since) {
+		this.stalledSince = since;
 	}
 
 	/**
@@ -104,22 +268,73 @@ public class User {
 	}
 
 	/**
-	 * Changes the user name
+	 * What to do once a name change is decided
+	 */
+	public interface NameChange {
+		void done(boolean changed) throws IOException;
+	}
+
+	/**
+	 * Changes the user name. When another server of the cluster has to agree,
+	 * the user's input waits unread and the change completes later on its
+	 * event loop.
 	 *
 	 * @param name to set
-	 * @return if was successful
+	 * @param done told whether the change was made, on the event loop
 	 */
-	public boolean changeName(String name) {
+	public void changeName(String name, NameChange done) throws IOException {
 		name = name.replace("\n", "").replace("\r", "");
 
-		if (names.containsKey(name))
-			return false;
+		Name interned = NameIds.acquire(name);
+		if (!interned.claim(this)) {
+			NameIds.release(interned);
+			done.done(false);
+			return;
+		}
 
-		names.put(name, this);
-		names.remove(this.name);
-		this.name = name;
+		/* Unique on this server so far, now across the cluster */
+		CompletableFuture<Boolean> claim = Cluster.claim(name);
+		if (claim.isDone() || eventLoop == null) {
+			finishName(interned, claim.join(), done);
+			return;
+		}
 
-		return true;
+		/* The answer arrives by the claim timeout; reading resumes on its own if it somehow doesn't */
+		eventLoop.pauseReading(this, System.nanoTime() + 2_000_000L * Config.CLUSTER_CLAIM_TIMEOUT_MILLIS);
+		claim.thenAccept(granted -> eventLoop.execute(() -> {
+			try {
+				finishName(interned, granted, done);
+			} catch (IOException ie) {
+				disconnect();
+			}
+			if (userChannel.isOpen())
+				eventLoop.resumeReading(this);
+		}));
+	}
+
+	private void finishName(Name interned, boolean granted, NameChange done) throws IOException {
+		if (!granted || !userChannel.isOpen()) {
+			/* Gone while the cluster was asked: nobody else will give the name back */
+			if (interned.release(this) && granted)
+				Cluster.release(interned.getText());
+			NameIds.release(interned);
+			if (userChannel.isOpen())
+				done.done(false);
+			return;
+		}
+
+		Name old = this.name;
+		if (old != null && old.release(this))
+			Cluster.release(old.getText());
+		this.name = interned;
+
+		/* The old name is still held while the change is announced, its id must not name anyone else yet */
+		try {
+			done.done(true);
+		} finally {
+			if (old != null)
+				NameIds.release(old);
+		}
 	}
 
 	/**
@@ -128,13 +343,12 @@ public class User {
 	 * @param room to join
 	 */
 	public void joinRoom(Room room) throws IOException {
-		leaveRoom();
-		room.addUser(this);
-		currentRoom = room;
+		joinRoom(room.getName());
 	}
 
 	public void joinRoom(String room) throws IOException {
-		joinRoom(Room.getByName(room));
+		leaveRoom();
+		currentRoom = Room.join(room, this);
 	}
 
 	/**
@@ -153,9 +367,7 @@ public class User {
 	 * @param room to change to
 	 */
 	public void changeRoom(Room room) throws IOException {
-		leaveRoom();
-		room.addUser(this);
-		currentRoom = room;
+		joinRoom(room);
 	}
 
 	/**
@@ -172,24 +384,181 @@ public class User {
 	 */
 	public void delete() throws IOException {
 		leaveRoom();
-		users.remove(this.userChannel);
-		if (currentState != Protocol.State.INIT) {
-			names.remove(this.name);
+		if (users.remove(this))
+			Metrics.connectionsClosed.increment();
+		Name name = this.name;
+		if (name != null && name.release(this)) {
+			Cluster.release(name.getText());
+			NameIds.release(name);
+		}
+		if (eventLoop != null) {
+			framer.release(eventLoop.getBufferPool());
+			eventLoop.closed(this);
+		}
+
+		/* Replies still waiting for the end of the reactor wake-up, such as BYE */
+		if (userChannel.isOpen() && !userChannel.isBlocking()) {
+			try {
+				outbound.flush(userChannel);
+			} catch (IOException ie) {
+				/* Closing anyway */
+			}
 		}
 		this.userChannel.close();
 	}
 
+	/**
+	 * Queues an encoded frame for this user. The write itself happens on the
+	 * owning event loop; other threads only schedule it.
+	 *
+	 * @param frame to send
+	 */
+	public void send(ByteBuffer frame) {
+		queued(outbound.offer(frame));
+	}
+
+	/**
+	 * Queues the last frame this user gets, such as BYE. Whatever other
+	 * threads send afterwards, a broadcast to its room say, is thrown away.
+	 *
+	 * @param frame to send
+	 */
+	public void sendLast(ByteBuffer frame) {
+		queued(outbound.offerLast(frame));
+	}
+
+	private void queued(boolean offered) {
+		if (!offered) {
+			/* Slow consumer, and the policy says to cut it off */
+			cutOff();
+			return;
+		}
+
+		if (outbound.scheduleFlush()) {
+			if (eventLoop == null)
+				flush();
+			else
+				eventLoop.requestFlush(this);
+		}
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the channel takes. Write interest
+	 * is only kept while there are bytes left over. Must run on the owner.
+	 */
+	public void flush() {
+		try {
+			long flushed = outbound.flushed();
+			boolean drained = outbound.flush(userChannel);
+
+			/* A backlog that is still moving is only slow; the stall counts from the last progress */
+			if (drained)
+				stalledSince = 0;
+			else if (stalledSince == 0 || outbound.flushed() != flushed)
+				stalledSince = System.nanoTime();
+
+			if (key != null && key.isValid()) {
+				int ops = key.interestOps();
+				int wanted = drained ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+				if (ops != wanted)
+					key.interestOps(wanted);
+			}
+		} catch (IOException ie) {
+			scheduleDisconnect();
+		}
+	}
+
+	/**
+	 * Disconnects a user whose messages back up past the slow consumer limits,
+	 * when the policy is DISCONNECT. Safe from any thread.
+	 */
+	public void cutOff() {
+		Metrics.slowConsumerDisconnects.increment();
+		Log.event(LogEvent.SLOW_CONSUMER, Log.peer(userChannel));
+		scheduleDisconnect();
+	}
+
+	/*
+	 * Tearing down leaves the room, which must not happen while a broadcast may
+	 * still be iterating over it, so the owner always runs it separately.
+	 */
+	private void scheduleDisconnect() {
+		if (eventLoop == null)
+			disconnect();
+		else
+			eventLoop.requestDisconnect(this);
+	}
+
+	/**
+	 * Drops the connection after a write failure, an outbound overflow or going
+	 * over a rate limit. Must run on the owner.
+	 */
+	public void disconnect() {
+		if (!userChannel.isOpen())
+			return;
+
+		try {
+			delete();
+		} catch (IOException ie) {
+			Log.event(LogEvent.ERROR, Log.peer(userChannel), ie);
+		}
+
+		Log.event(LogEvent.CLOSE, Log.peer(userChannel));
+	}
+
 	public void sendMessage(String message) throws IOException {
 		currentRoom.sendMessage(this.name, message);
 	}
 
-	public boolean sendPrivateMessage(String name, String message) throws IOException {
+	public void sendMessage(ByteBuffer payload) throws IOException {
+		currentRoom.sendMessage(this.name, payload);
+	}
+
+	/**
+	 * Sends a private message that arrived as raw UTF-8 from a binary client
+	 *
+	 * @param name    of the recipient
+	 * @param payload the text
+	 * @return false if there is no such user
+	 */
+	public boolean sendPrivateMessage(String name, ByteBuffer payload) throws IOException {
 		User targetUser = getByName(name);
 
 		if (targetUser == null)
+			return Cluster.isEnabled()
+					&& sendPrivateMessage(name, StandardCharsets.UTF_8.decode(payload.duplicate()).toString());
+
+		if (Journal.isEnabled())
+			Journal.append(MessageType.PRIVATE, name, getName(),
+					StandardCharsets.UTF_8.decode(payload.duplicate()).toString());
+
+		if (!targetUser.isBinary())
+			deliver(targetUser, BinaryCodec.textMessage(MessageType.PRIVATE, this.name, payload));
+		else if (targetUser.isCompressed())
+			deliver(targetUser, FrameCompressor.compress(BinaryCodec.message(MessageType.PRIVATE, this.name, payload)));
+		else
+			deliver(targetUser, BinaryCodec.message(MessageType.PRIVATE, this.name, payload));
+		return true;
+	}
+
+	public boolean sendPrivateMessage(String name, String message) throws IOException {
+		User targetUser = getByName(name);
+
+		/* Not here, maybe on another node */
+		if (targetUser == null && !Cluster.sendPrivate(name, getName(), message))
 			return false;
 
-		MessagingUtils.sendMessage(targetUser, MessageType.PRIVATE, this.name, message);
+		Journal.append(MessageType.PRIVATE, name, getName(), message);
+		if (targetUser != null)
+			deliver(targetUser, MessagingUtils.frame(targetUser, MessageType.PRIVATE, this.name, message));
 		return true;
 	}
+
+	/* Hands the frame to this user's loop, which gets it to the target's own */
+	private void deliver(User target, ByteBuffer frame) {
+		if (eventLoop == null)
+			target.send(frame);
+		else
+			eventLoop.deliver(target, frame);
+	}
 }
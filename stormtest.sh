@@ -0,0 +1,17 @@
+## Starts a server and hits it with a reconnect storm: every connection at once, retrying with backoff when
+## refused, and reports how long until all are back in their rooms and how a connected probe fared meanwhile
+## (storm and server options go in JAVA_OPTS, e.g. JAVA_OPTS="-Dstorm.connections=8000 -Dchat.accept.rate=2000")
+
+port=${PORT:-8321}
+engine=${ENGINE:-REACTOR}
+
+./compile.sh || exit 1
+
+java $JAVA_OPTS -Dchat.engine=$engine -cp ./bin/ ChatServer $port > /dev/null 2>&1 &
+server=$!
+sleep 2
+
+java $JAVA_OPTS -cp ./bin/ ReconnectStorm 127.0.0.1 $port
+
+kill $server
+wait $server 2> /dev/null
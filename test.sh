@@ -0,0 +1,12 @@
+binDir="./bin/"
+testBinDir="./bin/test/"
+testDir="./test/"
+
+## Tests run against the compiled server classes; each is a main that throws on failure
+./compile.sh || exit 1
+
+mkdir -p $testBinDir
+
+javac -encoding UTF-8 -cp $binDir -d $testBinDir $testDir*.java || exit 1
+
+java -ea -cp $binDir:$testBinDir $1
@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks that the slow consumer policies never cut a frame: whatever they
+ * drop or merge, the bytes that reach the wire are whole lines, the one half
+ * written first included. Also that nothing follows the last frame.
+ *
+ * Run with ./test.sh OutboundQueueTest
+ */
+public class OutboundQueueTest {
+    public static void main(String[] args) throws Exception {
+        for (SlowConsumerPolicy policy : new SlowConsumerPolicy[] { SlowConsumerPolicy.COALESCE,
+                SlowConsumerPolicy.DROP_OLDEST })
+            partialWriteThenOverflow(policy);
+        nothingAfterLast();
+
+        System.out.println("OutboundQueueTest passed");
+    }
+
+    /* A head frame half written, more queued behind it until the queue has to merge and then drop */
+    private static void partialWriteThenOverflow(SlowConsumerPolicy policy) throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 64, 0, policy);
+        Wire wire = new Wire();
+
+        queue.offer(line('A', 9));
+        wire.limit = 4;
+        check(!queue.flush(wire), policy + ": the first flush should stop half way");
+
+        queue.offer(line('B', 9));
+        queue.offer(line('C', 9));
+        queue.offer(line('D', 9));
+        /* Over maxFrames but not maxBytes: COALESCE merges here */
+        queue.offer(line('E', 9));
+        /* Over maxBytes: something has to be dropped */
+        queue.offer(line('F', 30));
+
+        wire.limit = Integer.MAX_VALUE;
+        check(queue.flush(wire), policy + ": the second flush should write everything");
+
+        String sent = wire.sent.toString();
+        check(sent.startsWith("AAAAAAAA\n"), policy + ": the half written frame was cut: " + sent);
+        for (String line : sent.split("\n"))
+            check(line.chars().allMatch(c -> c == line.charAt(0))
+                    && line.length() == (line.charAt(0) == 'F' ? 29 : 8), policy + ": corrupt line " + line);
+        check(sent.endsWith("F\n"), policy + ": the newest frame was lost");
+    }
+
+    /* Frames offered after the last one, as broadcasts after BYE, never reach the wire */
+    private static void nothingAfterLast() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        Wire wire = new Wire();
+        wire.limit = Integer.MAX_VALUE;
+
+        queue.offer(line('A', 4));
+        queue.offerLast(line('Z', 4));
+        queue.offer(line('B', 4));
+        queue.flush(wire);
+        queue.offer(line('C', 4));
+
+        check(queue.isEmpty(), "frames were queued after the last one");
+        check(wire.sent.toString().equals("AAA\nZZZ\n"), "wrong frames sent: " + wire.sent);
+    }
+
+    /* A line of a repeated letter, size bytes with its new line */
+    private static ByteBuffer line(char letter, int size) {
+        return ByteBuffer.wrap((String.valueOf(letter).repeat(size - 1) + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /* A socket that takes up to limit bytes per write, keeping them */
+    private static class Wire implements GatheringByteChannel {
+        private final StringBuilder sent = new StringBuilder();
+        private int limit;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer src = srcs[i];
+                while (src.hasRemaining() && written < limit) {
+                    sent.append((char) src.get());
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}